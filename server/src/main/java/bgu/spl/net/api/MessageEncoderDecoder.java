@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,21 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the remaining bytes of the given buffer
+     *
+     * @param buffer   the bytes to decode, the buffer is consumed up to its limit
+     * @param consumer called with every message that the bytes of the buffer complete, in order
+     */
+    default void decode(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +37,21 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message straight into the given buffer, starting at its position
+     *
+     * @param message the message to encode
+     * @param buffer  the buffer to write the encoded bytes to
+     * @return true if the message was written, false if it does not fit in the remaining space of the buffer, in
+     * which case the buffer is left as it was
+     */
+    default boolean encodeTo(T message, ByteBuffer buffer) {
+        byte[] encoded = encode(message);
+        if (encoded.length > buffer.remaining()) {
+            return false;
+        }
+        buffer.put(encoded);
+        return true;
+    }
+
 }
@@ -3,8 +3,10 @@ package bgu.spl.net.api.bidi;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.bidi.Messages.*;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 /**
  * Encoder and Decoder for the bidi protocol.
@@ -81,6 +83,129 @@ public class BidiMessageEncoderDecoder implements MessageEncoderDecoder<Message>
         }
     }
 
+    /**
+     * Decodes all the remaining bytes of the given buffer. Runs of field bytes are found with a single scan for the
+     * next separator and copied to their field at once, only the separators, the opcode and the single byte fields
+     * go through decodeNextByte.
+     *
+     * @param buffer   ByteBuffer of the bytes to decode.
+     * @param consumer Consumer of every message that the bytes of the buffer complete.
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<Message> consumer) {
+        while (buffer.hasRemaining()) {
+            int field = currentRunField();
+            if (field != 0) {
+                int runEnd = indexOfSeparator(buffer);
+                int runLength = runEnd - buffer.position();
+                if (runLength > 0) {
+                    appendRun(field, buffer, runLength);
+                }
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            Message nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
+    /**
+     * Finds the field that plain bytes are currently appended to. Belongs to "decode" function.
+     *
+     * @return 1 or 2 for field1 or field2, or 0 if the next byte has to go through decodeNextByte.
+     */
+    private int currentRunField() {
+        if (this.currentOpcode == null) {
+            return 0;
+        }
+        switch (this.currentOpcode) {
+            case REGISTER:
+                return this.zeros <= 1 ? 1 : 2;
+            case LOGIN:
+                return this.zeros <= 1 ? this.zeros + 1 : 0;
+            case FOLLOW:
+                return this.zeros == 0 ? 0 : 2;
+            case PM:
+                return this.zeros == 0 ? 1 : 2;
+            case POST:
+            case STAT:
+            case BLOCK:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Scans the buffer, from its position, for the next byte that ends a run of field bytes.
+     *
+     * @param buffer ByteBuffer to scan.
+     * @return Integer represents the index of the next '\0' or ';' byte, or the limit of the buffer if there is none.
+     */
+    private int indexOfSeparator(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = buffer.position(); i < limit; i++) {
+                byte current = array[offset + i];
+                if (current == '\0' || current == ';') {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = buffer.position(); i < limit; i++) {
+                byte current = buffer.get(i);
+                if (current == '\0' || current == ';') {
+                    return i;
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Copies a run of field bytes from the buffer to the end of the given field.
+     *
+     * @param field  Integer represents the field to append to, 1 or 2.
+     * @param buffer ByteBuffer to copy the bytes from, starting at its position.
+     * @param length Integer represents the number of bytes to copy.
+     */
+    private void appendRun(int field, ByteBuffer buffer, int length) {
+        if (field == 1) {
+            this.field1 = ensureCapacity(this.field1, this.field1Index + length);
+            buffer.get(this.field1, this.field1Index, length);
+            this.field1Index += length;
+        } else {
+            this.field2 = ensureCapacity(this.field2, this.field2Index + length);
+            buffer.get(this.field2, this.field2Index, length);
+            if (this.currentOpcode == Message.Opcode.REGISTER) {
+                //the birth date digits are kept as numbers.
+                for (int i = this.field2Index; i < this.field2Index + length; i++) {
+                    this.field2[i] -= 48;
+                }
+            }
+            this.field2Index += length;
+        }
+    }
+
+    /**
+     * Extends the given array so it has room for more bytes than the given size, like insertByteToField1 keeps it.
+     *
+     * @param array Represents the array that needs to hold the given number of bytes.
+     * @param size  Represents the number of bytes the array needs to hold.
+     * @return The given array, or an extended copy of it.
+     */
+    private byte[] ensureCapacity(byte[] array, int size) {
+        if (size < array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(array.length * 2, size + 1));
+    }
+
     /**
      * Generating a message according to the current opcode.
      *
@@ -467,4 +592,16 @@ public class BidiMessageEncoderDecoder implements MessageEncoderDecoder<Message>
     public byte[] encode(Message message) {
         return message.convertMessageToBytes();
     }
+
+    /**
+     * encodes the given message straight into the given buffer
+     *
+     * @param message the message to encode
+     * @param buffer  the buffer to write the encoded bytes to
+     * @return true if the message was written, false if it does not fit in the buffer
+     */
+    @Override
+    public boolean encodeTo(Message message, ByteBuffer buffer) {
+        return message.encodeTo(buffer);
+    }
 }
@@ -3,7 +3,9 @@ package bgu.spl.net.api.bidi;
 import bgu.spl.net.api.bidi.Messages.Error;
 import bgu.spl.net.api.bidi.Messages.*;
 import bgu.spl.net.srv.DataBase;
+import bgu.spl.net.srv.FanOutStage;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -13,20 +15,26 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
 
     private final DataBase dataBase;
 
+    private final FanOutStage fanOut;
+
     private final boolean shouldTerminate;
 
     private Connections<Message> connections;
 
-    private final ReadWriteLock logOrSendLock;
-
     private final ReadWriteLock registerOrLogStatLock;
 
     private int connectionID;
 
-    public BidiMessageProtocolImpl(DataBase dataBase, ReadWriteLock logOrSendLock, ReadWriteLock registerOrLogStatLock) {
+    /**
+     * Whether the connection was already removed from the connections, its id may belong to a new connection since, so
+     * nothing is processed for it anymore.
+     */
+    private boolean disconnected;
+
+    public BidiMessageProtocolImpl(DataBase dataBase, FanOutStage fanOut, ReadWriteLock registerOrLogStatLock) {
         this.dataBase = dataBase;
+        this.fanOut = fanOut;
         this.registerOrLogStatLock = registerOrLogStatLock;
-        this.logOrSendLock = logOrSendLock;
         this.shouldTerminate = false;
     }
 
@@ -37,6 +45,7 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
     public void start(int connectionId, Connections<Message> connections) {
         this.connectionID = connectionId;
         this.connections = connections;
+        this.disconnected = false;
     }
 
     /**
@@ -47,6 +56,39 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
         return this.shouldTerminate;
     }
 
+    /**
+     * Notifications are the only messages a slow client can do without, every other message answers its own request.
+     *
+     * @param message Represents the message to check.
+     * @return true if the given message is a Notification.
+     */
+    @Override
+    public boolean isDroppable(Message message) {
+        return message.getOpcode() == Message.Opcode.NOTIFICATION;
+    }
+
+    /**
+     * Parks a notification of a slow client in the waiting messages of its user. The user goes back to logging in, so
+     * the notifications after it are parked behind it, and the fan-out stage sends them all again, in order, once the
+     * client read what is queued for it.
+     *
+     * @param message Represents the notification that could not be queued.
+     * @return true if the notification was parked, false if no user is logged in on this connection.
+     */
+    @Override
+    public boolean park(Message message) {
+        User user = this.dataBase.getConnectedUser(this.connectionID);
+        if (user == null) {
+            return false;
+        }
+        //only notifications are droppable, so only notifications are parked.
+        this.dataBase.addWaitingMessage(user, (Notification) message);
+        if (user.parkSession(this.connectionID)) {
+            this.fanOut.submitLogin(this.connections, user, this.connectionID);
+        }
+        return true;
+    }
+
     /**
      * Processes the given message.
      *
@@ -54,6 +96,10 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      */
     @Override
     public void process(Message message) {
+        if (this.disconnected) {
+            //the connection logged out, its id may already belong to another connection.
+            return;
+        }
         final Message msg = message;
         Runnable currentProcess;
         if (msg.getOpcode() == Message.Opcode.REGISTER) {
@@ -85,14 +131,17 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      */
     private void registerFunction(Register registerMsg) {
         this.registerOrLogStatLock.writeLock().lock(); // Register is considered as a write event.
-        if (this.dataBase.getUserByName(registerMsg.getUsername()) != null) {
-            //if the user is already registered - return error message.
-            this.connections.send(this.connectionID, new Error(registerMsg.getOpcode()));
-        } else {
-            this.dataBase.registerUser(registerMsg.getUsername(), registerMsg.getPassword(), registerMsg.getYear(), registerMsg.getMonth(), registerMsg.getDay());
-            this.connections.send(this.connectionID, registerMsg.generateAckMessage());
+        try {
+            if (this.dataBase.getUserByName(registerMsg.getUsername()) != null
+                    || !this.dataBase.registerUser(registerMsg.getUsername(), registerMsg.getPassword(), registerMsg.getYear(), registerMsg.getMonth(), registerMsg.getDay())) {
+                //if the user is already registered, or could not be saved - return error message.
+                this.connections.send(this.connectionID, new Error(registerMsg.getOpcode()));
+            } else {
+                this.connections.send(this.connectionID, registerMsg.generateAckMessage());
+            }
+        } finally {
+            this.registerOrLogStatLock.writeLock().unlock();
         }
-        this.registerOrLogStatLock.writeLock().unlock();
     }
 
     /**
@@ -101,31 +150,46 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      * @param loginMsg Represents a Login message to be processed.
      */
     private void loginFunction(Login loginMsg) {
-        this.logOrSendLock.writeLock().lock(); // Login is considered as a write event.
         User checkIfAlreadyConnected = this.dataBase.getConnectedUser(this.connectionID);
         if (checkIfAlreadyConnected != null || loginMsg.captcha == '0') {
             this.connections.send(this.connectionID, new Error(loginMsg.getOpcode()));
         } else {
             User toCheck = this.dataBase.getUserByName(loginMsg.getUsername());
-            if ((toCheck == null) || (!toCheck.getPassword().equals(loginMsg.getPassword())) || (toCheck.isConnected())) {
+            if ((toCheck == null) || (!toCheck.getPassword().equals(loginMsg.getPassword())) || (!toCheck.beginLogin(this.connectionID))) {
                 //If the user is not registered \ password doesnt match \ is already connected --> return error message.
                 this.connections.send(this.connectionID, new Error(loginMsg.getOpcode()));
             } else {
+                this.dataBase.loginUser(toCheck);
                 this.connections.send(connectionID, loginMsg.generateAckMessage());
-                synchronized (toCheck.getWaitingMessages()) {
-                    int size = toCheck.getWaitingMessages().size();
-                    for (int i = 0; i < size; i++) {
-                        //Sending to the user all the messages that were waiting for him\her
-                        Message current = toCheck.getWaitingMessages().poll();
-                        this.connections.send(this.connectionID, current);
-                    }
-                    //setting the connection value to true
-                    toCheck.login(this.connectionID);
-                    this.dataBase.loginUser(toCheck);
-                }
+                //the messages that were waiting for the user are sent by the fan out worker of the user, after the ACK
+                //and before every post or private message that is delivered to the user from now on.
+                this.fanOut.submitLogin(this.connections, toCheck, this.connectionID);
             }
         }
-        this.logOrSendLock.writeLock().unlock();
+    }
+
+    /**
+     * Logs out the user of a connection that was closed without a Logout message, so a dead client does not keep its
+     * session, and removes the connection.
+     */
+    @Override
+    public void connectionClosed() {
+        if (this.disconnected) {
+            //logged out already, and the id may belong to another connection by now.
+            return;
+        }
+        this.dataBase.logoutUser(this.connectionID);
+        disconnect();
+    }
+
+    /**
+     * Removes this connection from the connections, once.
+     */
+    private void disconnect() {
+        if (!this.disconnected) {
+            this.disconnected = true;
+            this.connections.disconnect(this.connectionID);
+        }
     }
 
     /**
@@ -134,15 +198,13 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      * @param logoutMsg Represents a Logout message to be processed.
      */
     private void logoutFunction(Logout logoutMsg) {
-        this.logOrSendLock.writeLock().lock(); // Logout is considered as a write event.
-        if (this.dataBase.loginIsEmpty()) {
+        if (this.dataBase.getConnectedUser(this.connectionID) == null) {
             this.connections.send(this.connectionID, new Error(logoutMsg.getOpcode()));
         } else {
             this.dataBase.logoutUser(this.connectionID);
             this.connections.send(this.connectionID, logoutMsg.generateAckMessage());
-            this.connections.disconnect(this.connectionID);
+            disconnect();
         }
-        this.logOrSendLock.writeLock().unlock();
     }
 
     /**
@@ -172,7 +234,6 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      * @param postMsg Represents a Post message to be processed.
      */
     private void postFunction(Post postMsg) {
-        this.logOrSendLock.readLock().lock(); // Post is considered as a read event.
         User sender = this.dataBase.getConnectedUser(this.connectionID);
         if (sender == null) {
             //the user is not logged in --> send error message
@@ -182,22 +243,14 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
             List<User> users = new Vector<>();
             searchingForUsersInMessage(postMsg, sender, users);
             //adding all the followers of the sender to the list
-            users.addAll(sender.getFollowers());
+            sender.getFollowers().forEach(users::add);
             Notification toSend = new Notification((byte) 1, sender.getUserName(), postMsg.getContent());
-            for (User currentUser : users) {
-                //send notification to each user
-                if (currentUser.isConnected()) {
-                    //if the user is connected --> send the notification
-                    this.dataBase.sendNotification(this.connections, currentUser.getConnId(), toSend);
-                } else {
-                    //else --> send the message to the waiting queue of that user.
-                    currentUser.getWaitingMessages().add(toSend);
-                }
-            }
             this.dataBase.addToHistory(toSend);
+            //the post is accepted - it is delivered to the connected users and the waiting queues of the rest by the
+            //fan out stage, while the poster gets the ACK right away.
+            this.fanOut.submit(this.connections, users, toSend);
             this.connections.send(this.connectionID, postMsg.generateAckMessage());
         }
-        this.logOrSendLock.readLock().unlock();
     }
 
     /**
@@ -232,25 +285,18 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      * @param pmMsg Represents a PM message to be processed.
      */
     private void pmFunction(PM pmMsg) {
-        this.logOrSendLock.readLock().lock(); // PM is considered as a read event.
         User sender = this.dataBase.getConnectedUser(this.connectionID);
         User recipient = this.dataBase.getUserByName(pmMsg.getUserName());
-        if ((sender == null) || (recipient == null) || sender.getBlockedBy().contains(recipient)) {
+        if ((sender == null) || (recipient == null) || sender.isBlockedBy(recipient)) {
             //the user is not logged in or recipient is not registered --> send error message
             this.connections.send(this.connectionID, new Error(pmMsg.getOpcode()));
-            this.logOrSendLock.readLock().unlock();
             return;
         } else {
             Notification toSend = new Notification((byte) 0, sender.getUserName(), pmMsg.getFilteredContent());
-            if (recipient.isConnected()) {
-                this.dataBase.sendNotification(this.connections, recipient.getConnId(), toSend);
-            } else {
-                recipient.getWaitingMessages().add(toSend);
-            }
             this.dataBase.addToHistory(toSend);
+            this.fanOut.submit(this.connections, Collections.singletonList(recipient), toSend);
         }
         this.connections.send(this.connectionID, pmMsg.generateAckMessage());
-        this.logOrSendLock.readLock().unlock();
     }
 
     /**
@@ -260,21 +306,24 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
      */
     private void logstatFunction(LogStat logstatMsg) {
         this.registerOrLogStatLock.readLock().lock(); // Logstat is considered as a read event.
-        User currentUser = this.dataBase.getConnectedUser(this.connectionID);
-        if (currentUser == null) {
-            this.connections.send(this.connectionID, new Error(logstatMsg.getOpcode()));
-        } else {
-            List<User> registeredUsers = this.dataBase.returnRegisteredUsers(currentUser);
-            short[] numOfPosts = new short[registeredUsers.size()];
-            int i = 0;
-            for (User user : registeredUsers) {
-                numOfPosts[i] = this.dataBase.returnNumberOfPosts(user.getUserName());
-                i++;
-            }
+        try {
+            User currentUser = this.dataBase.getConnectedUser(this.connectionID);
+            if (currentUser == null) {
+                this.connections.send(this.connectionID, new Error(logstatMsg.getOpcode()));
+            } else {
+                List<User> registeredUsers = this.dataBase.returnRegisteredUsers(currentUser);
+                short[] numOfPosts = new short[registeredUsers.size()];
+                int i = 0;
+                for (User user : registeredUsers) {
+                    numOfPosts[i] = user.getPostsAmm();
+                    i++;
+                }
 
-            this.connections.send(this.connectionID, logstatMsg.generateAckMessage(registeredUsers, numOfPosts));
+                this.connections.send(this.connectionID, logstatMsg.generateAckMessage(registeredUsers, numOfPosts));
+            }
+        } finally {
+            this.registerOrLogStatLock.readLock().unlock();
         }
-        this.registerOrLogStatLock.readLock().unlock();
     }
 
     /**
@@ -303,7 +352,7 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
                 }
                 if (!currentClient.isBlockedBy(user)) {
                     ages[legalSize] = user.getAge();
-                    numberOfPosts[legalSize] = this.dataBase.returnNumberOfPosts(user.getUserName());
+                    numberOfPosts[legalSize] = user.getPostsAmm();
                     followers[legalSize] = user.getFollowersAmm();
                     following[legalSize] = user.getFollowingAmm();
                     legalSize++;
@@ -328,18 +377,12 @@ public class BidiMessageProtocolImpl implements BidiMessagingProtocol<Message> {
     private void blockFunction(Block blockMsg) {
         User currentClient = this.dataBase.getConnectedUser(this.connectionID);
         User user = this.dataBase.getUserByName(blockMsg.getUsername());
-        if ((user == null) || (currentClient == null)) {
-            //if the requesting user is not logged in OR if the user in the request does not exist --> send error
+        // blocking and blocked users should unfollow each other
+        if ((user == null) || (currentClient == null) || !this.dataBase.blockUser(currentClient, user)) {
+            //if the requesting user is not logged in OR if the user in the request does not exist OR the block could
+            //not be saved --> send error
             this.connections.send(this.connectionID, new Error(blockMsg.getOpcode()));
         } else {
-            user.addBlockedBy(currentClient);
-            // blocking and blocked users should unfollow each other
-            if (currentClient.getFollowers().contains(user))
-                currentClient.removeFollower(user);
-            if (user.getFollowers().contains(currentClient))
-                user.removeFollower(currentClient);
-
-            user.addBlockedBy(currentClient);
             this.connections.send(this.connectionID, blockMsg.generateAckMessage());
         }
     }
@@ -12,4 +12,41 @@ public interface BidiMessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Used by the connection handler to decide which messages may be dropped when its client does not read fast enough.
+     *
+     * @param message the message to check
+     * @return true if the client can do without the given message
+     */
+    default boolean isDroppable(T message) {
+        return false;
+    }
+
+    /**
+     * Called by the connection handler instead of queueing a droppable message when its client does not read fast
+     * enough.
+     *
+     * @param message the message that could not be queued
+     * @return true if the protocol kept the message for a later delivery, false if the handler should queue it anyway
+     */
+    default boolean park(T message) {
+        return false;
+    }
+
+    /**
+     * Called once the connection of this protocol is closed, whether the client left, the server dropped it or it was
+     * idle for too long. Runs after every message of the connection was processed.
+     */
+    default void connectionClosed() {
+    }
+
+    /**
+     * Used by the connection handler to keep a quiet connection alive.
+     *
+     * @return the message to send to a client nothing was sent to for a while, or null if the protocol has none
+     */
+    default T keepAliveMessage() {
+        return null;
+    }
 }
\ No newline at end of file
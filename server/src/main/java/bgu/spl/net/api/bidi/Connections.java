@@ -1,10 +1,50 @@
 package bgu.spl.net.api.bidi;
 
+import bgu.spl.net.srv.FileRegion;
+
+import java.nio.ByteBuffer;
+
 public interface Connections<T> {
 
     boolean send(int connectionId, T msg);
 
     void broadcast(T msg);
 
+    /**
+     * Sends the same message to several connections, encoding it only once.
+     *
+     * @param connectionIds the ids of the connections to send the message to
+     * @param msg           the message to send
+     * @return the number of connections the message was sent to
+     */
+    int multicast(int[] connectionIds, T msg);
+
+    /**
+     * Sends bytes that were already encoded to a single connection.
+     *
+     * @param connectionId the id of the connection to send to
+     * @param msg          the message the bytes hold, for the decisions that depend on its content, or null if they hold
+     *                     several messages that must not be dropped
+     * @param frame        the encoded bytes, owned by the connection from now on
+     * @return true if the connection exists
+     */
+    boolean sendEncoded(int connectionId, T msg, ByteBuffer frame);
+
+    /**
+     * Sends a range of a file to a single connection as it is, without reading it into the heap.
+     *
+     * @param connectionId the id of the connection to send to
+     * @param region       the range of the file, owned by the connection from now on if it exists
+     * @return true if the connection exists
+     */
+    boolean sendRegion(int connectionId, FileRegion region);
+
+    /**
+     * @param connectionId the id of the connection
+     * @return the number of bytes sent to the connection and not written to the client yet, or -1 if there is no such
+     * connection
+     */
+    int getOutboundQueueBytes(int connectionId);
+
     void disconnect(int connectionId);
 }
\ No newline at end of file
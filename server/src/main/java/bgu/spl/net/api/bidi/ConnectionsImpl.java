@@ -1,28 +1,108 @@
 package bgu.spl.net.api.bidi;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.srv.BufferPool;
 import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.FileRegion;
+import bgu.spl.net.srv.SharedFrame;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    private final Map<Integer, ConnectionHandler<T>> connectionHandlerMap;
+    private static final int INITIAL_CAPACITY = 1 << 10;
 
-    public ConnectionsImpl() {
-        this.connectionHandlerMap = new HashMap<>();
+    /**
+     * The handlers of the active connections, the connection id is the index of the slot. Sending reads a slot without
+     * locking, adding and removing connections lock the table.
+     */
+    private volatile AtomicReferenceArray<ConnectionHandler<T>> slots;
+    /**
+     * Ids of closed connections, reused oldest first so a stale id is reused as late as possible.
+     */
+    private final Queue<Integer> freeIds;
+    /**
+     * The lowest id that was never given out, id 0 is never used.
+     */
+    private int nextId;
+    private final Object lock;
+    /**
+     * Encodes the messages that are sent to several connections at once, only its encode method is used.
+     */
+    private final MessageEncoderDecoder<T> encoder;
+    /**
+     * The pool the messages that are sent to several connections are encoded into, or null to encode them into heap
+     * buffers.
+     */
+    private final BufferPool buffers;
+
+    /**
+     * Default Constructor.
+     *
+     * @param encoder MessageEncoderDecoder to encode multicast and broadcast messages with, its encode method is called
+     *                by many threads at once so it must not keep any state.
+     */
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder) {
+        this(encoder, null);
+    }
+
+    /**
+     * @param encoder MessageEncoderDecoder to encode multicast and broadcast messages with, its encode methods are
+     *                called by many threads at once so they must not keep any state.
+     * @param buffers BufferPool to encode multicast and broadcast messages into, for connections that write them to a
+     *                SocketChannel, which would copy a heap buffer into a direct one on every write.
+     */
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder, BufferPool buffers) {
+        this.encoder = encoder;
+        this.buffers = buffers;
+        this.slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        this.freeIds = new ArrayDeque<>();
+        this.nextId = 1;
+        this.lock = new Object();
     }
 
-    public void addConnection(int currentId, ConnectionHandler<T> toAdd) {
-        if (!this.connectionHandlerMap.containsValue(toAdd)) {
-            this.connectionHandlerMap.put(currentId, toAdd);
+    /**
+     * Adds a new connection, giving it the id of a closed connection if there is one.
+     *
+     * @param toAdd ConnectionHandler of the new connection.
+     * @return the unique id of the connection, as long as it is not disconnected.
+     */
+    public int addConnection(ConnectionHandler<T> toAdd) {
+        synchronized (lock) {
+            Integer free = this.freeIds.poll();
+            int connectionId = free != null ? free : this.nextId++;
+            AtomicReferenceArray<ConnectionHandler<T>> current = this.slots;
+            if (connectionId >= current.length()) {
+                current = grow(current, connectionId);
+            }
+            current.set(connectionId, toAdd);
+            return connectionId;
         }
     }
 
+    /**
+     * Replaces the slots with a copy large enough for the given id. Called while holding the lock, so no slot changes
+     * during the copy, and senders that still read the old table see the same handlers.
+     */
+    private AtomicReferenceArray<ConnectionHandler<T>> grow(AtomicReferenceArray<ConnectionHandler<T>> current, int id) {
+        int capacity = current.length();
+        while (capacity <= id) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<ConnectionHandler<T>> grown = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < current.length(); i++) {
+            grown.lazySet(i, current.get(i));
+        }
+        this.slots = grown;
+        return grown;
+    }
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> sender = this.connectionHandlerMap.get(connectionId);
+        ConnectionHandler<T> sender = handlerOf(connectionId);
         if (sender == null) {
             return false;
         } else {
@@ -31,17 +111,126 @@ public class ConnectionsImpl<T> implements Connections<T> {
         }
     }
 
+    @Override
+    public boolean sendEncoded(int connectionId, T msg, ByteBuffer frame) {
+        ConnectionHandler<T> sender = handlerOf(connectionId);
+        if (sender == null) {
+            return false;
+        } else {
+            sender.sendFrame(msg, frame);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean sendRegion(int connectionId, FileRegion region) {
+        ConnectionHandler<T> sender = handlerOf(connectionId);
+        if (sender == null) {
+            return false;
+        } else {
+            sender.sendRegion(region);
+            return true;
+        }
+    }
+
+    @Override
+    public int getOutboundQueueBytes(int connectionId) {
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+        return handler == null ? -1 : handler.getOutboundQueueBytes();
+    }
+
+    private ConnectionHandler<T> handlerOf(int connectionId) {
+        AtomicReferenceArray<ConnectionHandler<T>> current = this.slots;
+        if (connectionId <= 0 || connectionId >= current.length()) {
+            return null;
+        }
+        return current.get(connectionId);
+    }
+
     @Override
     public void broadcast(T msg) {
-        for (Map.Entry<Integer, ConnectionHandler<T>> entry : this.connectionHandlerMap.entrySet()) {
-            if (entry.getValue() != null) {
-                entry.getValue().send(msg);
+        SharedFrame frame = null;
+        AtomicReferenceArray<ConnectionHandler<T>> current = this.slots;
+        for (int i = 1; i < current.length(); i++) {
+            ConnectionHandler<T> handler = current.get(i);
+            if (handler != null) {
+                if (frame == null) {
+                    frame = encodeShared(msg);
+                }
+                handler.sendShared(msg, frame.retain());
+            }
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    @Override
+    public int multicast(int[] connectionIds, T msg) {
+        if (connectionIds.length == 1) {
+            //nothing to share, the handler encodes it straight into its own buffer.
+            return send(connectionIds[0], msg) ? 1 : 0;
+        }
+        SharedFrame frame = null;
+        int sent = 0;
+        for (int connectionId : connectionIds) {
+            ConnectionHandler<T> handler = handlerOf(connectionId);
+            if (handler != null) {
+                if (frame == null) {
+                    frame = encodeShared(msg);
+                }
+                handler.sendShared(msg, frame.retain());
+                sent++;
             }
         }
+        if (frame != null) {
+            //the reference of the encoder, the buffer goes back to the pool once the last recipient wrote it.
+            frame.release();
+        }
+        return sent;
     }
 
+    /**
+     * Encodes a message into the smallest pooled buffer it fits in, falling back to a heap buffer without a pool or for
+     * frames that do not fit in the largest class of the pool.
+     *
+     * @param msg T object to encode.
+     * @return a frame of the encoded message, every recipient writes a read only view of it with its own position.
+     */
+    private SharedFrame encodeShared(T msg) {
+        if (buffers == null) {
+            return new SharedFrame(ByteBuffer.wrap(this.encoder.encode(msg)), null);
+        }
+        ByteBuffer buf = buffers.leaseClass(0);
+        if (this.encoder.encodeTo(msg, buf)) {
+            buf.flip();
+            return new SharedFrame(buf, buffers);
+        }
+        buffers.release(buf);
+        byte[] encoded = this.encoder.encode(msg);
+        int sizeClass = buffers.classOf(encoded.length);
+        if (encoded.length > buffers.getClassSize(sizeClass)) {
+            return new SharedFrame(ByteBuffer.wrap(encoded), null);
+        }
+        buf = buffers.leaseClass(sizeClass);
+        buf.put(encoded);
+        buf.flip();
+        return new SharedFrame(buf, buffers);
+    }
+
+    /**
+     * Removes the connection and makes its id free for a new connection. Has to be called once per connection.
+     *
+     * @param connectionId Integer represents the id of the connection.
+     */
     @Override
     public void disconnect(int connectionId) {
-        this.connectionHandlerMap.remove(connectionId);
+        synchronized (lock) {
+            AtomicReferenceArray<ConnectionHandler<T>> current = this.slots;
+            if (connectionId > 0 && connectionId < current.length() && current.get(connectionId) != null) {
+                current.set(connectionId, null);
+                this.freeIds.add(connectionId);
+            }
+        }
     }
 }
@@ -1,5 +1,7 @@
 package bgu.spl.net.api.bidi.Messages;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class represents Ack Messages From server to the client.
  */
@@ -79,6 +81,22 @@ public class Ack extends Message {
         return output;
     }
 
+    /**
+     * Write all the data of this Ack message straight to the given buffer.
+     *
+     * @param buffer ByteBuffer to write this Ack message to.
+     */
+    @Override
+    protected void writeTo(ByteBuffer buffer) {
+        buffer.putShort(this.opcode.getCode());
+        buffer.putShort(this.resolvedOpcode.getCode());
+        if (this.messageElements != null) {
+            for (byte[] element : this.messageElements) {
+                buffer.put(element);
+            }
+        }
+    }
+
     /**
      * No need to return an ack message to an ack message.
      */
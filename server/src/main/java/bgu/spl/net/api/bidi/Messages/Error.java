@@ -1,5 +1,7 @@
 package bgu.spl.net.api.bidi.Messages;
 
+import java.nio.ByteBuffer;
+
 public class Error extends Message {
 
     private final Opcode errorMessageOpcode;
@@ -21,6 +23,12 @@ public class Error extends Message {
         return output;
     }
 
+    @Override
+    protected void writeTo(ByteBuffer buffer) {
+        buffer.putShort(this.opcode.getCode());
+        buffer.putShort(this.errorMessageOpcode.getCode());
+    }
+
     @Override
     public Ack generateAckMessage() {
         return null;
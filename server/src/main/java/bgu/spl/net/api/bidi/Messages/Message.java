@@ -1,5 +1,12 @@
 package bgu.spl.net.api.bidi.Messages;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Abstract Class represents a Message that is send from the server to the client or from the client to the server.
  */
@@ -10,6 +17,12 @@ public abstract class Message {
      */
     protected Opcode opcode;
 
+    /**
+     * UTF-8 encoder of each thread, used to write Strings straight into a ByteBuffer without an intermediate array.
+     */
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
     /**
      * converting a bytes array to the equivalent short number.
      *
@@ -78,6 +91,50 @@ public abstract class Message {
 
     public abstract byte[] convertMessageToBytes();
 
+    /**
+     * Writes all the data of this message to the given buffer, starting at its position.
+     *
+     * @param buffer ByteBuffer to write this message to.
+     * @return true if the message was written, false if it does not fit in the remaining space of the buffer, in
+     * which case the position of the buffer is left as it was.
+     */
+    public boolean encodeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            writeTo(buffer);
+            return true;
+        } catch (BufferOverflowException ex) {
+            buffer.position(start);
+            return false;
+        }
+    }
+
+    /**
+     * Writes all the data of this message to the given buffer. Messages that are sent by the server override it to
+     * skip the intermediate array of convertMessageToBytes.
+     *
+     * @param buffer ByteBuffer to write this message to.
+     * @throws BufferOverflowException if the message does not fit in the buffer.
+     */
+    protected void writeTo(ByteBuffer buffer) {
+        buffer.put(convertMessageToBytes());
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the given String to the buffer, without a separator.
+     *
+     * @param string String to write.
+     * @param buffer ByteBuffer to write the String to.
+     * @throws BufferOverflowException if the String does not fit in the buffer.
+     */
+    protected void putString(String string, ByteBuffer buffer) {
+        CharsetEncoder encoder = UTF8_ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(string), buffer, true);
+        if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+            throw new BufferOverflowException();
+        }
+    }
+
     protected int insertArray(byte[] array, byte[] output, int index) {
         for (byte b : array) {
             output[index] = b;
@@ -1,5 +1,6 @@
 package bgu.spl.net.api.bidi.Messages;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class Notification extends Message {
@@ -50,6 +51,16 @@ public class Notification extends Message {
         return output;
     }
 
+    @Override
+    protected void writeTo(ByteBuffer buffer) {
+        buffer.putShort(this.opcode.getCode());
+        buffer.put(this.privateMessageOrPublicPost);
+        putString(this.postingUser, buffer);
+        buffer.put((byte) '\0');
+        putString(this.content, buffer);
+        buffer.put((byte) '\0');
+    }
+
     @Override
     public Ack generateAckMessage() {
         return null;
@@ -1,26 +1,70 @@
 package bgu.spl.net.api.bidi;
 
-import bgu.spl.net.api.bidi.Messages.Message;
+import bgu.spl.net.srv.OfflineMailbox;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class User implements Comparable<User> {
 
     private static final int DISCONNECTED_ID = -1;
 
+    /*
+     * The session of a user is a single long, so it moves between the phases below with one compare and set:
+     * bits 0-31 hold the connection id, bits 32-33 the phase, and the rest the number of senders that are sending to
+     * the connection right now.
+     */
+    private static final long CONN_ID_MASK = 0xFFFFFFFFL;
+    private static final int PHASE_SHIFT = 32;
+    private static final long PHASE_MASK = 3L << PHASE_SHIFT;
+    private static final int INFLIGHT_SHIFT = 34;
+    private static final long ONE_INFLIGHT = 1L << INFLIGHT_SHIFT;
+
+    /**
+     * Not logged in, messages go to the waiting messages.
+     */
+    private static final long OFFLINE = 0;
+    /**
+     * Logged in, or online with a slow client whose notifications were parked, the waiting messages are being sent and
+     * new messages still go after them.
+     */
+    private static final long LOGGING_IN = 1L << PHASE_SHIFT;
+    /**
+     * Logged in, messages are sent to the connection.
+     */
+    private static final long ONLINE = 2L << PHASE_SHIFT;
+    /**
+     * Logging out, waiting for the senders that are still sending to the connection.
+     */
+    private static final long LOGGING_OUT = 3L << PHASE_SHIFT;
+    /**
+     * How many times a logout checks for senders that are still sending before it parks until the last one is done.
+     */
+    private static final int LOGOUT_SPINS = 100;
+
     private final int userId;
     private final String userName;
     private final String password;
-    private final Set<User> following;
-    private final Set<User> followers;
-    private final ConcurrentLinkedQueue<Message> waitingMessages;
-    private final Set<User> blockedBy;
-    private int connId;
+    /*
+     * The relations of the user are immutable sets, replaced as a whole under the lock of the user, so they are read
+     * without a lock or a copy.
+     */
+    private volatile UserSet following;
+    private volatile UserSet followers;
+    private final OfflineMailbox waitingMessages;
+    private volatile UserSet blockedBy;
     private final short age;
-    private volatile boolean isConnected;
+    private final AtomicLong session;
+    /**
+     * The thread that waits in {@link #logout()} for the senders to finish, unparked by the last one of them.
+     */
+    private volatile Thread logoutWaiter;
+    /**
+     * The number of public posts of this user, counted as they are published.
+     */
+    private final AtomicInteger numOfPosts;
 
     /**
      * Default Constructor.
@@ -28,23 +72,32 @@ public class User implements Comparable<User> {
      * @param userName String represents this User Name.
      * @param password String represents this user Password.
      * @param userNum  Integer represents the unique id of this user.
+     * @param waitingMessages OfflineMailbox to keep the messages that wait for this user in.
      */
-    public User(String userName, String password, int userNum, short age) {
-        this.connId = DISCONNECTED_ID;
+    public User(String userName, String password, int userNum, short age, OfflineMailbox waitingMessages) {
+        this.session = new AtomicLong(OFFLINE);
+        this.numOfPosts = new AtomicInteger(0);
         this.userName = userName;
         this.password = password;
         this.age = age;
-        this.isConnected = false;
-        this.following = new HashSet<>();
-        this.followers = new HashSet<>();
-        this.waitingMessages = new ConcurrentLinkedQueue<>();
+        this.following = UserSet.EMPTY;
+        this.followers = UserSet.EMPTY;
+        this.waitingMessages = waitingMessages;
         this.userId = userNum;
-        this.blockedBy = new HashSet<>();
+        this.blockedBy = UserSet.EMPTY;
 
     }
 
+    /**
+     * @return the id of the connection this user is logged in on, or -1 if the user is not logged in.
+     */
     public int getConnId() {
-        return connId;
+        long current = session.get();
+        return phaseOf(current) == OFFLINE ? DISCONNECTED_ID : connIdOf(current);
+    }
+
+    public int getUserId() {
+        return userId;
     }
 
     public String getUserName() {
@@ -60,12 +113,12 @@ public class User implements Comparable<User> {
     }
 
     /**
-     * Return a copy of the current users this user is following
+     * Return the current users this user is following, the set does not change afterwards.
      *
-     * @return Set Of User Objects that this user is following.
+     * @return UserSet of the users that this user is following.
      */
-    public Set<User> getFollowing() {
-        return new HashSet<>(following);
+    public UserSet getFollowing() {
+        return following;
     }
 
     public short getFollowingAmm() {
@@ -76,64 +129,222 @@ public class User implements Comparable<User> {
         return (short) followers.size();
     }
 
+    public short getPostsAmm() {
+        return (short) numOfPosts.get();
+    }
+
     /**
-     * Return a copy of the current users that follows this user.
+     * Counts a public post this user published.
      *
-     * @return Set Of User Objects that follows this user.
+     * @return the number of public posts of this user, with this one.
      */
-    public Set<User> getFollowers() {
-        return new HashSet<>(followers);
+    public int addPost() {
+        return numOfPosts.incrementAndGet();
+    }
+
+    /**
+     * @param posts Integer represents the number of public posts of this user, when it is restored from the disk.
+     */
+    public void setNumOfPosts(int posts) {
+        numOfPosts.set(posts);
+    }
+
+    /**
+     * Return the current users that follows this user, the set does not change afterwards.
+     *
+     * @return UserSet of the users that follows this user.
+     */
+    public UserSet getFollowers() {
+        return followers;
     }
 
 
     public boolean isConnected() {
-        return isConnected;
+        return phaseOf(session.get()) != OFFLINE;
     }
 
-    public ConcurrentLinkedQueue<Message> getWaitingMessages() {
+    public OfflineMailbox getWaitingMessages() {
         return waitingMessages;
     }
 
     public synchronized void addFollower(User toAdd) {
-        this.followers.add(toAdd);
+        this.followers = this.followers.plus(toAdd);
     }
 
 
     public synchronized void addFollowing(User toAdd) {
-        this.following.add(toAdd);
+        this.following = this.following.plus(toAdd);
     }
 
     public synchronized void removeFollower(User toRemove) {
-        this.followers.remove(toRemove);
+        this.followers = this.followers.minus(toRemove);
     }
 
     public synchronized void removeFollowing(User toRemove) {
-        this.following.remove(toRemove);
+        this.following = this.following.minus(toRemove);
     }
 
     //endregion Getters
 
-    public Set<User> getBlockedBy() {
+    public UserSet getBlockedBy() {
         return this.blockedBy;
     }
 
-    public void addBlockedBy(User user) {
-        this.blockedBy.add(user);
+    public synchronized void addBlockedBy(User user) {
+        this.blockedBy = this.blockedBy.plus(user);
+    }
+
+    /**
+     * Replaces the relations of this user at once, when they are restored from the disk.
+     *
+     * @param following UserSet of the users that this user is following.
+     * @param followers UserSet of the users that follows this user.
+     * @param blockedBy UserSet of the users that blocked this user.
+     */
+    public synchronized void restoreRelations(UserSet following, UserSet followers, UserSet blockedBy) {
+        this.following = following;
+        this.followers = followers;
+        this.blockedBy = blockedBy;
     }
 
     public Boolean isBlockedBy(User user) {
         return this.blockedBy.contains(user);
     }
 
+    /**
+     * Starts a login on the given connection. The user is logged in from now on, but its messages keep going to the
+     * waiting messages until {@link #finishLogin(int)} is called after they were all sent.
+     *
+     * @param connId Integer represents the id of the connection the user logs in on.
+     * @return true if the login started, false if the user is logged in, or still logging out, somewhere else.
+     */
+    public boolean beginLogin(int connId) {
+        return session.compareAndSet(OFFLINE, LOGGING_IN | (connId & CONN_ID_MASK));
+    }
+
+    /**
+     * Lets the caller send the waiting messages of a login that was started on the given connection. Has to be
+     * followed by {@link #finishLogin(int)} if it succeeded.
+     *
+     * @param connId Integer represents the id of the connection the login was started on.
+     * @return true if the login is still in progress on that connection.
+     */
+    public boolean acquireLogin(int connId) {
+        return acquire(LOGGING_IN, connId) != DISCONNECTED_ID;
+    }
+
+    /**
+     * Ends a login after its waiting messages were sent, from now on messages are sent to the connection.
+     *
+     * @param connId Integer represents the id of the connection the login was started on.
+     */
+    public void finishLogin(int connId) {
+        long current;
+        long next;
+        do {
+            current = session.get();
+            next = current - ONE_INFLIGHT;
+            if (phaseOf(current) == LOGGING_IN && connIdOf(current) == connId) {
+                //only the one who sends the waiting messages is in flight while logging in.
+                next = (next & ~PHASE_MASK) | ONLINE;
+            }
+        } while (!session.compareAndSet(current, next));
+        released(next);
+    }
+
+    /**
+     * Moves an online user back to logging in, once a notification of its slow client was parked. New messages go to
+     * the waiting messages after it until they were all sent again and {@link #finishLogin(int)} is called.
+     *
+     * @param connId Integer represents the id of the connection the user is logged in on.
+     * @return true if the user was online on that connection, and its waiting messages should be sent again.
+     */
+    public boolean parkSession(int connId) {
+        long current;
+        do {
+            current = session.get();
+            if (phaseOf(current) != ONLINE || connIdOf(current) != connId) {
+                return false;
+            }
+        } while (!session.compareAndSet(current, (current & ~PHASE_MASK) | LOGGING_IN));
+        return true;
+    }
+
+    /**
+     * Lets the caller send a message to the connection of this user, if the user is online. Has to be followed by
+     * {@link #releaseSession()} if it succeeded, the user does not finish logging out before that.
+     *
+     * @return the id of the connection to send to, or -1 if the message should go to the waiting messages.
+     */
+    public int acquireSession() {
+        return acquire(ONLINE, DISCONNECTED_ID);
+    }
+
+    /**
+     * Ends a send that {@link #acquireSession()} or {@link #acquireLogin(int)} allowed.
+     */
+    public void releaseSession() {
+        released(session.addAndGet(-ONE_INFLIGHT));
+    }
+
+    /**
+     * Wakes a logout up once the last sender it waits for is done.
+     *
+     * @param current Long represents the session right after a sender was done.
+     */
+    private void released(long current) {
+        if (phaseOf(current) == LOGGING_OUT && (current >>> INFLIGHT_SHIFT) == 0) {
+            Thread waiter = logoutWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private int acquire(long phase, int connId) {
+        long current;
+        do {
+            current = session.get();
+            if (phaseOf(current) != phase || (connId != DISCONNECTED_ID && connIdOf(current) != connId)) {
+                return DISCONNECTED_ID;
+            }
+        } while (!session.compareAndSet(current, current + ONE_INFLIGHT));
+        return connIdOf(current);
+    }
+
+    /**
+     * Logs the user out, and returns once no one is sending to its connection anymore, so the connection id may be
+     * given to a new connection right after.
+     */
     public void logout() {
-        this.isConnected = false;
-        this.connId = DISCONNECTED_ID;
+        long current;
+        do {
+            current = session.get();
+            if (phaseOf(current) == OFFLINE || phaseOf(current) == LOGGING_OUT) {
+                return;
+            }
+        } while (!session.compareAndSet(current, (current & ~PHASE_MASK) | LOGGING_OUT));
+        //a send only puts the message in the queue of the connection, so the wait is usually over within the spins.
+        for (int spins = 0; spins < LOGOUT_SPINS && (session.get() >>> INFLIGHT_SHIFT) != 0; spins++) {
+            Thread.yield();
+        }
+        if ((session.get() >>> INFLIGHT_SHIFT) != 0) {
+            //published before the check, so the last sender either sees the waiter or is done before the check.
+            logoutWaiter = Thread.currentThread();
+            while ((session.get() >>> INFLIGHT_SHIFT) != 0) {
+                LockSupport.park(this);
+            }
+            logoutWaiter = null;
+        }
+        session.set(OFFLINE);
     }
 
+    private static long phaseOf(long session) {
+        return session & PHASE_MASK;
+    }
 
-    public void login(int connId) {
-        this.isConnected = true;
-        this.connId = connId;
+    private static int connIdOf(long session) {
+        return (int) (session & CONN_ID_MASK);
     }
 
     @Override
@@ -0,0 +1,427 @@
+package bgu.spl.net.api.bidi;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * An immutable set of users, for the followers and the following of a user.
+ * Adding or removing a user returns a new set that shares all but a few nodes with this one, so a change costs
+ * O(log n) rather than a copy of the whole set, and the new set is published by a single volatile write. Readers hold
+ * on to the set they read, which never changes under them.
+ * <p>
+ * The set is a hash array mapped trie keyed by the unique number of the user: every level takes the next 5 bits of the
+ * number, and a node keeps only the slots that are used, marked in a bitmap. A slot holds either a user or the node of
+ * the next level. Since the numbers are unique two users never collide.
+ */
+public final class UserSet implements Iterable<User> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * The deepest level a trie of int keys reaches, the last level takes the 2 bits that are left.
+     */
+    private static final int MAX_DEPTH = (Integer.SIZE + BITS - 1) / BITS;
+
+    public static final UserSet EMPTY = new UserSet(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private UserSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Builds a set of the given users at once, each node with its final slots, instead of adding them one at a time
+     * and copying the path of every one of them. Users that come in the order this set iterates in, as a set that was
+     * written out is read back, are not sorted first.
+     *
+     * @param users User array to build the set of.
+     * @return a set that holds the given users.
+     */
+    public static UserSet of(User[] users) {
+        int[] ids = new int[users.length];
+        for (int i = 0; i < users.length; i++) {
+            ids[i] = users[i].getUserId();
+        }
+        return of(users, ids);
+    }
+
+    /**
+     * Builds a set of the given users, whose numbers the caller has at hand already, so the users themselves are not
+     * read while the set is built.
+     *
+     * @param users User array to build the set of.
+     * @param ids   Integer array of the unique numbers of the users, in the same order.
+     * @return a set that holds the given users.
+     */
+    public static UserSet of(User[] users, int[] ids) {
+        if (users.length == 0) {
+            return EMPTY;
+        }
+        Builder builder = inTrieOrder(ids) ? new Builder(users, ids) : sortedByTrie(users, ids);
+        Object built = builder.build(0, users.length, 0);
+        Node root = built instanceof Node ? (Node) built
+                : new Node(bitOf(((User) built).getUserId(), 0), new Object[]{built});
+        return new UserSet(root, builder.size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param user User to look for.
+     * @return true if the user is in this set.
+     */
+    public boolean contains(User user) {
+        if (user == null) {
+            return false;
+        }
+        int key = user.getUserId();
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            int bit = bitOf(key, shift);
+            if ((node.bitmap & bit) == 0) {
+                return false;
+            }
+            Object slot = node.slots[node.index(bit)];
+            if (slot instanceof Node) {
+                node = (Node) slot;
+            } else {
+                return ((User) slot).getUserId() == key;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param user User to add.
+     * @return a set that holds the users of this set and the given one, this set if it holds the user already.
+     */
+    public UserSet plus(User user) {
+        if (root == null) {
+            return new UserSet(new Node(bitOf(user.getUserId(), 0), new Object[]{user}), 1);
+        }
+        Node added = add(root, user, 0);
+        return added == root ? this : new UserSet(added, size + 1);
+    }
+
+    /**
+     * @param user User to remove.
+     * @return a set that holds the users of this set but the given one, this set if it does not hold the user.
+     */
+    public UserSet minus(User user) {
+        if (root == null) {
+            return this;
+        }
+        Object removed = remove(root, user.getUserId(), 0);
+        if (removed == root) {
+            return this;
+        }
+        if (removed == null) {
+            return EMPTY;
+        }
+        //a single user left at the top still needs a node to sit in.
+        Node newRoot = removed instanceof Node ? (Node) removed
+                : new Node(bitOf(((User) removed).getUserId(), 0), new Object[]{removed});
+        return new UserSet(newRoot, size - 1);
+    }
+
+    /**
+     * Passes every user of this set to the given action, without allocating anything.
+     *
+     * @param action Consumer to pass the users to.
+     */
+    @Override
+    public void forEach(Consumer<? super User> action) {
+        if (root != null) {
+            forEach(root, action);
+        }
+    }
+
+    private static void forEach(Node node, Consumer<? super User> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Node) {
+                forEach((Node) slot, action);
+            } else {
+                action.accept((User) slot);
+            }
+        }
+    }
+
+    /**
+     * @return a new array of the users of this set.
+     */
+    public User[] toArray() {
+        final User[] users = new User[size];
+        forEach(new Consumer<User>() {
+            private int next;
+
+            @Override
+            public void accept(User user) {
+                users[next++] = user;
+            }
+        });
+        return users;
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return new TrieIterator(root);
+    }
+
+    private static int bitOf(int key, int shift) {
+        return 1 << ((key >>> shift) & MASK);
+    }
+
+    /**
+     * @return the number of the user with its levels in reverse, the first level in the highest bits, so the unsigned
+     * order of the keys is the order the users are iterated in.
+     */
+    private static int trieKey(int key) {
+        return (key & MASK) << 27 | (key >>> 5 & MASK) << 22 | (key >>> 10 & MASK) << 17 | (key >>> 15 & MASK) << 12
+                | (key >>> 20 & MASK) << 7 | (key >>> 25 & MASK) << 2 | key >>> 30;
+    }
+
+    private static boolean inTrieOrder(int[] ids) {
+        //flipped to compare unsigned.
+        int previous = trieKey(ids[0]) ^ Integer.MIN_VALUE;
+        for (int i = 1; i < ids.length; i++) {
+            int current = trieKey(ids[i]) ^ Integer.MIN_VALUE;
+            if (previous > current) {
+                return false;
+            }
+            previous = current;
+        }
+        return true;
+    }
+
+    private static Builder sortedByTrie(User[] users, int[] ids) {
+        //the key in the high half, flipped to sort unsigned, and the position of the user in the low half.
+        long[] keys = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = (long) (trieKey(ids[i]) ^ Integer.MIN_VALUE) << Integer.SIZE | i;
+        }
+        Arrays.sort(keys);
+        User[] sortedUsers = new User[users.length];
+        int[] sortedIds = new int[ids.length];
+        for (int i = 0; i < keys.length; i++) {
+            sortedUsers[i] = users[(int) keys[i]];
+            sortedIds[i] = ids[(int) keys[i]];
+        }
+        return new Builder(sortedUsers, sortedIds);
+    }
+
+    private static Node add(Node node, User user, int shift) {
+        int key = user.getUserId();
+        int bit = bitOf(key, shift);
+        int index = node.index(bit);
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = user;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new Node(node.bitmap | bit, slots);
+        }
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            Node child = add((Node) slot, user, shift + BITS);
+            if (child == slot) {
+                return node;
+            }
+            replacement = child;
+        } else if (((User) slot).getUserId() == key) {
+            return node;
+        } else {
+            replacement = pair((User) slot, user, shift + BITS);
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * @return a node holding two users whose numbers are equal up to the given shift.
+     */
+    private static Node pair(User first, User second, int shift) {
+        int firstBit = bitOf(first.getUserId(), shift);
+        int secondBit = bitOf(second.getUserId(), shift);
+        if (firstBit == secondBit) {
+            return new Node(firstBit, new Object[]{pair(first, second, shift + BITS)});
+        }
+        //compared unsigned, the bit of slot 31 is the sign bit.
+        Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[]{first, second} : new Object[]{second, first};
+        return new Node(firstBit | secondBit, slots);
+    }
+
+    /**
+     * @return the node without the user, the same node if the user is not in it, the single user that is left in place
+     * of a node, or null if nothing is left.
+     */
+    private static Object remove(Node node, int key, int shift) {
+        int bit = bitOf(key, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = node.index(bit);
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = remove((Node) slot, key, shift + BITS);
+            if (replacement == slot) {
+                return node;
+            }
+        } else if (((User) slot).getUserId() == key) {
+            replacement = null;
+        } else {
+            return node;
+        }
+        if (replacement != null) {
+            if (node.slots.length == 1 && !(replacement instanceof Node)) {
+                //a lone user moves up to the parent.
+                return replacement;
+            }
+            Object[] slots = node.slots.clone();
+            slots[index] = replacement;
+            return new Node(node.bitmap, slots);
+        }
+        if (node.slots.length == 1) {
+            return null;
+        }
+        if (node.slots.length == 2 && !(node.slots[1 - index] instanceof Node)) {
+            return node.slots[1 - index];
+        }
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    /**
+     * A level of the trie.
+     */
+    private static final class Node {
+        private final int bitmap;
+        /**
+         * The used slots, in the order of their bits. Each holds a User or a Node.
+         */
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Builds a trie from an array of users in the order of the trie, where the users of every node are a range of the
+     * array and the users of every slot of the node a range within it.
+     */
+    private static final class Builder {
+        private final User[] users;
+        private final int[] ids;
+        private int size;
+
+        private Builder(User[] users, int[] ids) {
+            this.users = users;
+            this.ids = ids;
+        }
+
+        /**
+         * @return the single user of the range, or the node holding all of them.
+         */
+        private Object build(int from, int to, int shift) {
+            if (to - from == 1 || shift >= Integer.SIZE) {
+                //past the last level only copies of the same user are left.
+                size++;
+                return users[from];
+            }
+            int bitmap = 0;
+            for (int i = from; i < to; i++) {
+                bitmap |= bitOf(ids[i], shift);
+            }
+            Object[] slots = new Object[Integer.bitCount(bitmap)];
+            int index = 0;
+            int start = from;
+            while (start < to) {
+                int bit = bitOf(ids[start], shift);
+                int end = start + 1;
+                while (end < to && bitOf(ids[end], shift) == bit) {
+                    end++;
+                }
+                slots[index++] = build(start, end, shift + BITS);
+                start = end;
+            }
+            return new Node(bitmap, slots);
+        }
+    }
+
+    /**
+     * Walks the trie depth first, keeping the path to the current user.
+     */
+    private static final class TrieIterator implements Iterator<User> {
+        private final Node[] nodes = new Node[MAX_DEPTH];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private User next;
+
+        private TrieIterator(Node root) {
+            if (root != null) {
+                nodes[0] = root;
+                depth = 1;
+                advance();
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (depth > 0) {
+                int top = depth - 1;
+                Node node = nodes[top];
+                if (positions[top] == node.slots.length) {
+                    nodes[top] = null;
+                    positions[top] = 0;
+                    depth--;
+                    continue;
+                }
+                Object slot = node.slots[positions[top]++];
+                if (slot instanceof Node) {
+                    nodes[depth] = (Node) slot;
+                    depth++;
+                } else {
+                    next = (User) slot;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public User next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            User current = next;
+            advance();
+            return current;
+        }
+    }
+}
@@ -4,8 +4,10 @@ import bgu.spl.net.api.bidi.BidiMessageEncoderDecoder;
 import bgu.spl.net.api.bidi.BidiMessageProtocolImpl;
 import bgu.spl.net.api.bidi.Messages.Message;
 import bgu.spl.net.srv.DataBase;
-import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.FanOutStage;
+import bgu.spl.net.srv.Reactor;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -22,17 +24,29 @@ public class ReactorMain {
 
         int port = Integer.parseInt(args[0]);
         int numOfThreads = Integer.parseInt(args[1]);
+        //optional third argument - the number of selector threads, one per core by default.
+        int numOfSelectors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        //optional fourth argument - the number of seconds a client may stay silent before it is disconnected.
+        long idleTimeoutSeconds = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        //optional fifth argument "reuseport" - every selector thread listens on the port itself (SO_REUSEPORT, Linux).
+        boolean reusePort = args.length > 4 && args[4].equals("reuseport");
         //DataBase to hold all the messages and users of the BGSServer.
         DataBase dataBase = new DataBase();
-        //ReadWriteLocks to synchronize different part of the functions in the DataManager
-        ReadWriteLock logOrSendLock = new ReentrantReadWriteLock(true);
+        //ReadWriteLock to synchronize different part of the functions in the DataManager
         ReadWriteLock registerOrUserList = new ReentrantReadWriteLock(true);
+        //delivers posts and private messages to their recipients, off the threads of the senders.
+        FanOutStage fanOut = new FanOutStage(Runtime.getRuntime().availableProcessors(), dataBase);
         //creating and activating the Reactor Server
-        Server<Message> reactorServer = Server.reactor(
+        Reactor<Message> reactorServer = new Reactor<>(
                 numOfThreads,
+                numOfSelectors,
                 port,
-                () -> new BidiMessageProtocolImpl(dataBase, logOrSendLock, registerOrUserList),
+                () -> new BidiMessageProtocolImpl(dataBase, fanOut, registerOrUserList),
                 BidiMessageEncoderDecoder::new);
+        reactorServer.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeoutSeconds));
+        reactorServer.setReusePort(reusePort);
+        //stops the server, the fan-out stage and the data base in this order when the server is stopped.
+        Runtime.getRuntime().addShutdownHook(new ShutdownHook(reactorServer, Thread.currentThread(), fanOut, dataBase));
 
         reactorServer.serve();
     }
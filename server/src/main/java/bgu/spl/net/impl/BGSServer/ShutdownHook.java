@@ -0,0 +1,52 @@
+package bgu.spl.net.impl.BGSServer;
+
+import bgu.spl.net.srv.DataBase;
+import bgu.spl.net.srv.FanOutStage;
+import bgu.spl.net.srv.Server;
+
+import java.io.IOException;
+
+/**
+ * Stops the BGSServer when the JVM shuts down, each part after the parts that use it: the server first, so no request
+ * is in progress anymore, then the fan-out stage, so no delivery is in flight, and the DataBase last, which writes
+ * the changes that did not reach the disk yet.
+ */
+class ShutdownHook extends Thread {
+
+    private static final long SERVE_TIMEOUT_MILLIS = 10000;
+
+    private final Server<?> server;
+    private final Thread serving;
+    private final FanOutStage fanOut;
+    private final DataBase dataBase;
+
+    /**
+     * @param server   Server to stop.
+     * @param serving  Thread that runs the serve method of the server, waited for once the server is closed.
+     * @param fanOut   FanOutStage the server delivers with.
+     * @param dataBase DataBase of the server.
+     */
+    ShutdownHook(Server<?> server, Thread serving, FanOutStage fanOut, DataBase dataBase) {
+        super("shutdown");
+        this.server = server;
+        this.serving = serving;
+        this.fanOut = fanOut;
+        this.dataBase = dataBase;
+    }
+
+    @Override
+    public void run() {
+        try {
+            server.close();
+            //serve returns once the requests in progress are done.
+            serving.join(SERVE_TIMEOUT_MILLIS);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        fanOut.close();
+        System.out.println(fanOut);
+        dataBase.close();
+    }
+}
@@ -4,6 +4,7 @@ import bgu.spl.net.api.bidi.BidiMessageEncoderDecoder;
 import bgu.spl.net.api.bidi.BidiMessageProtocolImpl;
 import bgu.spl.net.api.bidi.Messages.Message;
 import bgu.spl.net.srv.DataBase;
+import bgu.spl.net.srv.FanOutStage;
 import bgu.spl.net.srv.Server;
 
 import java.util.concurrent.locks.ReadWriteLock;
@@ -19,14 +20,28 @@ public class TPCMain {
         int port = Integer.parseInt(args[0]);
         //DataBase to hold all the messages and users of the BGSServer.
         DataBase dataBase = new DataBase();
-        //ReadWriteLocks to synchronize different part of the functions in the DataManager
-        ReadWriteLock logOrSendLock = new ReentrantReadWriteLock(true);
+        //ReadWriteLock to synchronize different part of the functions in the DataManager
         ReadWriteLock registerOrUserList = new ReentrantReadWriteLock(true);
+        //delivers posts and private messages to their recipients, off the threads of the senders.
+        FanOutStage fanOut = new FanOutStage(Runtime.getRuntime().availableProcessors(), dataBase);
+        //optional second argument "virtual" - run every client on a virtual thread (Java 21 and later).
+        boolean virtualThreads = args.length > 1 && args[1].equals("virtual");
         //creating and activating the Tread-Per-Client Server
-        Server<Message> threadPerClientServer = Server.threadPerClient(
-                port,
-                () -> new BidiMessageProtocolImpl(dataBase, logOrSendLock, registerOrUserList),
-                BidiMessageEncoderDecoder::new);
+        Server<Message> threadPerClientServer;
+        if (virtualThreads) {
+            threadPerClientServer = Server.virtualThreadPerClient(
+                    port,
+                    () -> new BidiMessageProtocolImpl(dataBase, fanOut, registerOrUserList),
+                    BidiMessageEncoderDecoder::new);
+        } else {
+            threadPerClientServer = Server.threadPerClient(
+                    port,
+                    () -> new BidiMessageProtocolImpl(dataBase, fanOut, registerOrUserList),
+                    BidiMessageEncoderDecoder::new);
+        }
+        //stops the server, the fan-out stage and the data base in this order when the server is stopped.
+        Runtime.getRuntime().addShutdownHook(
+                new ShutdownHook(threadPerClientServer, Thread.currentThread(), fanOut, dataBase));
 
         threadPerClientServer.serve();
     }
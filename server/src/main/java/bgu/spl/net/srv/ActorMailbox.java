@@ -0,0 +1,51 @@
+package bgu.spl.net.srv;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The pending tasks of a single actor of the ActorThreadPool.
+ * Any thread may add tasks, but at most one worker runs them at a time: the first task added to an idle mailbox
+ * schedules it, and the worker keeps it scheduled for as long as tasks remain.
+ */
+final class ActorMailbox {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Whether the mailbox is scheduled on the pool or being run by a worker.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Adds a task to the mailbox.
+     *
+     * @param task Runnable to run after every task that was added before it.
+     * @return true if the mailbox was idle and the caller has to schedule it.
+     */
+    /*package*/ boolean add(Runnable task) {
+        tasks.add(task);
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * @return the next task of the mailbox, or null if there is none. Only called by the worker running the mailbox.
+     */
+    /*package*/ Runnable poll() {
+        return tasks.poll();
+    }
+
+    /**
+     * Called by the worker running the mailbox once it stops running it.
+     *
+     * @return true if tasks are still pending and the worker has to schedule the mailbox again.
+     */
+    /*package*/ boolean release() {
+        if (!tasks.isEmpty()) {
+            return true;
+        }
+        scheduled.set(false);
+        //a task added before the flag was cleared saw the mailbox as scheduled and relies on this worker.
+        return !tasks.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+}
@@ -1,34 +1,73 @@
 package bgu.spl.net.srv;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    private static final int DEFAULT_MAX_TASKS_PER_RUN = 32;
+    private static final long DEFAULT_TIME_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
     private final ExecutorService threads;
+    /**
+     * A worker that picks an actor up runs its queued tasks until it ran this many of them or used its time slice, and
+     * then puts the actor back at the end of the pool queue so one busy actor does not starve the others.
+     */
+    private final int maxTasksPerRun;
+    private final long timeSliceNanos;
+    /**
+     * The mailboxes of the actors that are submitted by an object rather than by their mailbox, an entry goes away with
+     * its actor once the actor is no longer referenced.
+     */
+    private final Map<Object, ActorMailbox> mailboxesByActor = new WeakHashMap<>();
 
     public ActorThreadPool(int threads) {
+        this(threads, DEFAULT_MAX_TASKS_PER_RUN, DEFAULT_TIME_SLICE_NANOS);
+    }
+
+    /**
+     * @param threads        Integer represents the number of worker threads.
+     * @param maxTasksPerRun Integer represents the maximal number of tasks of one actor a worker runs before yielding.
+     * @param timeSliceNanos Long represents the time in nanoseconds after which a worker yields the actor it runs,
+     *                       checked between tasks.
+     */
+    public ActorThreadPool(int threads, int maxTasksPerRun, long timeSliceNanos) {
+        if (maxTasksPerRun < 1 || timeSliceNanos < 1) {
+            throw new IllegalArgumentException("the tasks per run and the time slice must be positive");
+        }
         this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this.maxTasksPerRun = maxTasksPerRun;
+        this.timeSliceNanos = timeSliceNanos;
     }
 
+    /**
+     * Submits a task of the given actor. The tasks of an actor run one at a time, in the order they were submitted.
+     *
+     * @param act Object represents the actor, the tasks of actors that are equal share a mailbox.
+     * @param r   Runnable to run.
+     */
     public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+        ActorMailbox mailbox;
+        synchronized (mailboxesByActor) {
+            mailbox = mailboxesByActor.computeIfAbsent(act, key -> new ActorMailbox());
+        }
+        submit(mailbox, r);
+    }
+
+    /**
+     * Submits a task of the actor that owns the given mailbox, without looking the mailbox up. The tasks of an actor
+     * run one at a time, in the order they were submitted. Never blocks.
+     *
+     * @param mailbox ActorMailbox of the actor.
+     * @param r       Runnable to run.
+     */
+    /*package*/ void submit(ActorMailbox mailbox, Runnable r) {
+        if (mailbox.add(r)) {
+            execute(mailbox);
         }
     }
 
@@ -36,38 +75,42 @@ public class ActorThreadPool {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
-        }
-        return pendingRunnables;
+    /**
+     * Stops taking new actors and waits for the actors that are already scheduled to run their current turn, without
+     * interrupting them. The tasks they leave for a later turn are dropped.
+     *
+     * @param timeoutMillis Long represents how long to wait for the running tasks.
+     * @return true if they finished in time.
+     */
+    public boolean shutdownAndWait(long timeoutMillis) throws InterruptedException {
+        threads.shutdown();
+        return threads.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
-                r.run();
-            } finally {
-                complete(act);
-            }
-        });
+    private void execute(ActorMailbox mailbox) {
+        try {
+            threads.execute(() -> {
+                try {
+                    long deadline = System.nanoTime() + timeSliceNanos;
+                    Runnable r;
+                    for (int ran = 0; ran < maxTasksPerRun && (r = mailbox.poll()) != null; ran++) {
+                        r.run();
+                        if (System.nanoTime() - deadline >= 0) {
+                            break;
+                        }
+                    }
+                } finally {
+                    complete(mailbox);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            //shut down, the rest of the tasks of the actor are dropped.
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private void complete(ActorMailbox mailbox) {
+        if (mailbox.release()) {
+            execute(mailbox);
         }
     }
 
@@ -7,24 +7,35 @@ import bgu.spl.net.api.bidi.ConnectionsImpl;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
 
+    private static final int DEFAULT_LOW_WATERMARK = 1 << 18; //256k
+    private static final int DEFAULT_HIGH_WATERMARK = 1 << 20; //1m
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
 
     private final int port;
     private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
-    private ServerSocket sock;
+    private volatile ServerSocket sock;
     /**
-     * AtomicInteger to give unique id to each new ConnectionHandler.
+     * The handlers whose threads still serve a client, closed and waited for once the server stops.
      */
-    private AtomicInteger connectionIdGenerator;
+    private final Set<BlockingConnectionHandler<T>> running = ConcurrentHashMap.newKeySet();
     /**
      * Connections Object that hold and map all the current Connections handlers in the server.
      */
     private ConnectionsImpl<T> connections;
+    /**
+     * Limits of the outbound queue of each connection, see BlockingConnectionHandler.
+     */
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.PARK;
 
     public BaseServer(
             int port,
@@ -36,8 +47,8 @@ public abstract class BaseServer<T> implements Server<T> {
         this.encdecFactory = encdecFactory;
         this.sock = null;
 
-        this.connectionIdGenerator = new AtomicInteger(1);
-        this.connections = new ConnectionsImpl<>();
+        //the writers write through a stream that copies every frame into an array, so heap frames cost nothing more.
+        this.connections = new ConnectionsImpl<>(encdecFactory.get());
     }
 
     @Override
@@ -55,26 +66,93 @@ public abstract class BaseServer<T> implements Server<T> {
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
-                        protocolFactory.get());
-                //give the current new handler a unique connection id.
-                int connectionID = connectionIdGenerator.getAndIncrement();
-                //add the current connections to the connections object.
-                this.connections.addConnection(connectionID, handler);
+                        protocolFactory.get(),
+                        lowWatermark,
+                        highWatermark,
+                        slowConsumerPolicy);
+                //add the current connections to the connections object, which gives it a unique connection id.
+                int connectionID = this.connections.addConnection(handler);
                 handler.start(connectionID, connections);
+                running.add(handler);
+                handler.setOnFinished(() -> finished(handler));
                 execute(handler);
+                execute(handler::runWriter);
             }
         } catch (IOException ex) {
         }
 
+        closeHandlers();
         System.out.println("server closed!!!");
     }
 
+    private void finished(BlockingConnectionHandler<T> handler) {
+        synchronized (running) {
+            running.remove(handler);
+            running.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the connections of every client and waits for their threads to finish the requests in progress, so what
+     * they use may be closed once serve returns.
+     */
+    private void closeHandlers() {
+        for (BlockingConnectionHandler<T> handler : running) {
+            try {
+                handler.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT_MILLIS);
+        synchronized (running) {
+            long left;
+            while (!running.isEmpty() && (left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                try {
+                    running.wait(left);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the limits of the outbound queue of every connection accepted from now on.
+     *
+     * @param lowWatermark  Integer represents the number of queued bytes under which reading from a client resumes.
+     * @param highWatermark Integer represents the number of queued bytes over which reading from a client stops and
+     *                      the slow consumer policy applies.
+     */
+    public void setOutboundWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark is greater than the high watermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets what is done with messages to clients that stopped reading, for every connection accepted from now on.
+     *
+     * @param slowConsumerPolicy SlowConsumerPolicy to apply.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
     @Override
     public void close() throws IOException {
         if (sock != null)
             sock.close();
     }
 
-    protected abstract void execute(BlockingConnectionHandler<T> handler);
+    /**
+     * Runs a task of a client on a thread of its own, the reader of the client and its writer each take one.
+     *
+     * @param task Runnable to run until the client is gone.
+     */
+    protected abstract void execute(Runnable task);
 
 }
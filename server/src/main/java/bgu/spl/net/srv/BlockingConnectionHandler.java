@@ -4,44 +4,203 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.bidi.BidiMessagingProtocol;
 import bgu.spl.net.api.bidi.Connections;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Serves a client with two threads of its own: the thread of {@link #run()} reads from the client and processes its
+ * requests, and the writer thread of {@link #runWriter()} is the only one that writes to the socket. Sending to the
+ * client only queues the message for the writer, so a client that does not read blocks its own writer and never the
+ * threads that send to it.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+    /**
+     * How long a connection that is done waits for its writer to write the last frames, like the answer to a logout,
+     * before the socket is closed under it.
+     */
+    private static final long CLOSE_LINGER_MILLIS = 5000;
+
     private final BidiMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
     private volatile boolean connected = true;
+    /**
+     * Encoded frames and file regions waiting to be written to the client, in the order they were sent.
+     */
+    private final Queue<OutboundFrame> outbound = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of bytes of the outbound frames, and of the frame that is being written.
+     */
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    /**
+     * Once the queued bytes pass the high watermark reading from the client stops, and it resumes only after the
+     * queued bytes fall back to the low watermark.
+     */
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private volatile boolean readPaused = false;
+    /**
+     * The threads of the reader and of the writer, unparked when there is something for them to do.
+     */
+    private volatile Thread reader;
+    private volatile Thread writer;
+    /**
+     * Set once the reader is done with the client, the writer writes the frames that are left and stops.
+     */
+    private volatile boolean finishing = false;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    /**
+     * Runs once the thread of this handler is done with the client, set by the server before the thread starts.
+     */
+    private Runnable onFinished = () -> {
+    };
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, BidiMessagingProtocol<T> protocol) {
+    public BlockingConnectionHandler(
+            Socket sock,
+            MessageEncoderDecoder<T> reader,
+            BidiMessagingProtocol<T> protocol,
+            int lowWatermark,
+            int highWatermark,
+            SlowConsumerPolicy slowConsumerPolicy) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * @param onFinished Runnable to run once the thread of this handler is done with the client.
+     */
+    /*package*/ void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
     }
 
     @Override
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
+            reader = Thread.currentThread();
             int read;
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    this.protocol.process(nextMessage);
+            try {
+                InputStream in = sock.getInputStream();
+                while (!protocol.shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                    encdec.decode(ByteBuffer.wrap(chunk, 0, read), this.protocol::process);
+                    pauseWhileQueueIsFull();
                 }
+            } finally {
+                //before the socket is closed, so the client can not reconnect into a session that was not closed yet.
+                protocol.connectionClosed();
+                finishWriting();
             }
 
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) {
+                //not the socket being closed under the read by close().
+                ex.printStackTrace();
+            }
+        } finally {
+            onFinished.run();
+        }
+    }
+
+    /**
+     * Stops reading from a client whose queue passed the high watermark, until the writer brought it back to the low
+     * watermark.
+     */
+    private void pauseWhileQueueIsFull() {
+        if (queuedBytes.get() <= highWatermark) {
+            return;
+        }
+        //published before the queue is checked again, so the writer either sees it or drained the queue before.
+        readPaused = true;
+        while (connected && writerDone.getCount() > 0 && queuedBytes.get() > lowWatermark) {
+            LockSupport.park(this);
         }
+        readPaused = false;
+    }
 
+    /**
+     * Lets the writer write the frames that are left, and waits for it a while.
+     */
+    private void finishWriting() {
+        finishing = true;
+        unpark(writer);
+        try {
+            writerDone.await(CLOSE_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the outbound frames to the client until the connection is closed, or until the reader is done and the
+     * queue is empty. Flushes once the queue is empty, so a burst of frames costs a single flush. Started by the server
+     * on a thread of its own right after the reader.
+     */
+    /*package*/ void runWriter() {
+        writer = Thread.currentThread();
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            WritableByteChannel channel = Channels.newChannel(out);
+            boolean unflushed = false;
+            while (connected) {
+                OutboundFrame next = outbound.poll();
+                if (next == null) {
+                    if (unflushed) {
+                        out.flush();
+                        unflushed = false;
+                    } else if (finishing) {
+                        break;
+                    } else {
+                        LockSupport.park(this);
+                    }
+                    continue;
+                }
+                if (next.droppable && slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST
+                        && queuedBytes.get() > highWatermark) {
+                    //the oldest frame that was not started, dropped until the queue is back under the high watermark.
+                    completeFrame(next);
+                    continue;
+                }
+                try {
+                    if (next.region != null) {
+                        while (next.region.remaining() > 0) {
+                            next.region.transferTo(channel);
+                        }
+                    } else {
+                        while (next.buffer.hasRemaining()) {
+                            channel.write(next.buffer);
+                        }
+                    }
+                } finally {
+                    completeFrame(next);
+                }
+                unflushed = true;
+            }
+        } catch (IOException ignored) {
+            //the client is gone, or the socket was closed under the write.
+        } finally {
+            writerDone.countDown();
+            dropOutbound();
+            unpark(reader);
+        }
     }
 
     /**
@@ -51,17 +210,142 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
      */
     @Override
     public void send(T msg) {
-        try {
-            out.write(encdec.encode(msg));
-            out.flush();
-        } catch (IOException ignored) {
+        if (msg != null) {
+            enqueue(msg, null, null);
+        }
+    }
 
+    /**
+     * Sends the given message, already encoded, to the client that is connected to this Connections handler
+     *
+     * @param msg   T object to send back to the client, used by the slow consumer policy, or null if the frame holds
+     *              several messages, which are never dropped or parked.
+     * @param frame ByteBuffer holding the encoded message.
+     */
+    @Override
+    public void sendFrame(T msg, ByteBuffer frame) {
+        enqueue(msg, frame, null);
+    }
+
+    /**
+     * Sends the given message, encoded once for several clients, to the client that is connected to this Connections
+     * handler
+     *
+     * @param msg   T object to send back to the client, used by the slow consumer policy.
+     * @param frame SharedFrame holding the encoded message, released once it was written or dropped.
+     */
+    @Override
+    public void sendShared(T msg, SharedFrame frame) {
+        enqueue(msg, null, frame);
+    }
+
+    /**
+     * Queues a message for the writer, encoding it unless it is already encoded.
+     *
+     * @param msg    T object to send to the client.
+     * @param frame  ByteBuffer holding the encoded message, or null to encode it here.
+     * @param shared SharedFrame holding the encoded message instead, or null.
+     */
+    private void enqueue(T msg, ByteBuffer frame, SharedFrame shared) {
+        boolean droppable = msg != null && protocol.isDroppable(msg);
+        if (queuedBytes.get() > highWatermark) {
+            //the client does not read - its queue is already full.
+            if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+                disconnect();
+                if (shared != null) {
+                    shared.release();
+                }
+                return;
+            } else if (slowConsumerPolicy == SlowConsumerPolicy.PARK && droppable && protocol.park(msg)) {
+                if (shared != null) {
+                    shared.release();
+                }
+                return;
+            }
+        }
+        ByteBuffer buf = shared != null ? shared.view() : frame != null ? frame : ByteBuffer.wrap(encdec.encode(msg));
+        queue(new OutboundFrame(buf, shared, null, buf.remaining(), droppable));
+    }
+
+    /**
+     * Sends the given range of a file to the client that is connected to this Connections handler.
+     *
+     * @param region FileRegion to send, closed once it was written or dropped.
+     */
+    @Override
+    public void sendRegion(FileRegion region) {
+        if (queuedBytes.get() > highWatermark && slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+            region.close();
+            disconnect();
+            return;
+        }
+        queue(new OutboundFrame(null, null, region, (int) region.remaining(), false));
+    }
+
+    private void queue(OutboundFrame toQueue) {
+        queuedBytes.addAndGet(toQueue.size);
+        outbound.add(toQueue);
+        unpark(writer);
+        if (writerDone.getCount() == 0) {
+            //sent after the writer stopped, it dropped the queue already.
+            dropOutbound();
+        }
+    }
+
+    @Override
+    public int getOutboundQueueBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Accounts for a frame that left the outbound queue, and lets the reader go on once the queue is back under the low
+     * watermark.
+     *
+     * @param frame OutboundFrame that was written or dropped.
+     */
+    private void completeFrame(OutboundFrame frame) {
+        if (frame.region != null) {
+            frame.region.close();
+        } else if (frame.shared != null) {
+            frame.shared.release();
+        }
+        if (queuedBytes.addAndGet(-frame.size) <= lowWatermark && readPaused) {
+            unpark(reader);
+        }
+    }
+
+    /**
+     * Drops every queued frame of a connection whose writer stopped, closing the file regions among them.
+     */
+    private void dropOutbound() {
+        OutboundFrame dropped;
+        while ((dropped = outbound.poll()) != null) {
+            completeFrame(dropped);
+        }
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Closes the connection of a client that stopped reading, on the thread that sends to it.
+     */
+    private void disconnect() {
+        try {
+            close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
     }
 
     @Override
     public void close() throws IOException {
         connected = false;
+        unpark(writer);
+        unpark(reader);
         sock.close();
     }
 
@@ -74,4 +358,32 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void start(int connectionID, Connections<T> connections) {
         this.protocol.start(connectionID, connections);
     }
+
+    /**
+     * A frame in the outbound queue of the connection.
+     */
+    private static final class OutboundFrame {
+        private final ByteBuffer buffer;
+        /**
+         * The frame the buffer is a view of, if it is shared with other connections.
+         */
+        private final SharedFrame shared;
+        /**
+         * The file region to send instead of the buffer, if it is not null.
+         */
+        private final FileRegion region;
+        private final int size;
+        /**
+         * Whether the slow consumer policy may drop this frame before it is written.
+         */
+        private final boolean droppable;
+
+        private OutboundFrame(ByteBuffer buffer, SharedFrame shared, FileRegion region, int size, boolean droppable) {
+            this.buffer = buffer;
+            this.shared = shared;
+            this.region = region;
+            this.size = size;
+            this.droppable = droppable;
+        }
+    }
 }
@@ -0,0 +1,290 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers in a few size classes.
+ * A lease is served from a small cache of the leasing thread, then from a bounded depot shared by all the threads, and
+ * only then allocated. Released buffers go back to the cache of the releasing thread and overflow to the depot, buffers
+ * that do not fit in the depot are left to the GC. Capacity of the depot that was not used during a whole trim
+ * interval is dropped, so the pool shrinks back after a spike of connections.
+ */
+public final class BufferPool {
+
+    private static final int[] DEFAULT_CLASS_SIZES = {1 << 9, 1 << 11, 1 << 13, 1 << 15, 1 << 17}; //512 to 128k
+    private static final long DEFAULT_MAX_DEPOT_BYTES_PER_CLASS = 1 << 22; //4m
+    /**
+     * The number of bytes each thread may keep in its cache of a single class, at least one buffer is always kept.
+     */
+    private static final int THREAD_CACHE_BYTES_PER_CLASS = 1 << 16; //64k
+    private static final long TRIM_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int[] classSizes;
+    private final Depot[] depots;
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(ThreadCache::new);
+    private final AtomicLong nextTrim = new AtomicLong(System.nanoTime() + TRIM_INTERVAL_NANOS);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_CLASS_SIZES, DEFAULT_MAX_DEPOT_BYTES_PER_CLASS);
+    }
+
+    /**
+     * @param classSizes             Integer array of the buffer sizes the pool serves, in ascending order.
+     * @param maxDepotBytesPerClass  Long represents the maximal number of bytes the shared depot keeps of every class.
+     */
+    public BufferPool(int[] classSizes, long maxDepotBytesPerClass) {
+        if (classSizes.length == 0) {
+            throw new IllegalArgumentException("at least one size class is required");
+        }
+        this.classSizes = classSizes.clone();
+        this.depots = new Depot[classSizes.length];
+        for (int i = 0; i < classSizes.length; i++) {
+            if (i > 0 && classSizes[i] <= classSizes[i - 1]) {
+                throw new IllegalArgumentException("the size classes must be ascending");
+            }
+            depots[i] = new Depot((int) Math.max(1, maxDepotBytesPerClass / classSizes[i]));
+        }
+    }
+
+    /**
+     * Leases a cleared buffer with at least the given capacity, rounded up to the smallest class that fits it.
+     * Requests larger than the largest class are served from the largest class.
+     *
+     * @param minCapacity Integer represents the number of bytes the caller needs.
+     * @return a direct ByteBuffer that has to be given back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer lease(int minCapacity) {
+        return leaseClass(classOf(minCapacity));
+    }
+
+    /**
+     * Leases a cleared buffer of the given size class.
+     *
+     * @param sizeClass Integer represents the index of the size class.
+     * @return a direct ByteBuffer that has to be given back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer leaseClass(int sizeClass) {
+        maybeTrim();
+        outstanding.increment();
+        ByteBuffer buf = threadCache.get().poll(sizeClass);
+        if (buf == null) {
+            buf = depots[sizeClass].poll();
+        }
+        if (buf == null) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(classSizes[sizeClass]);
+        }
+        hits.increment();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gives a leased buffer back to the pool. Buffers that did not come from a pool, like heap buffers, are ignored.
+     *
+     * @param buf ByteBuffer to release, must not be used by the caller afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        int sizeClass = buf.isDirect() ? exactClassOf(buf.capacity()) : -1;
+        if (sizeClass < 0) {
+            return;
+        }
+        outstanding.decrement();
+        if (!threadCache.get().offer(sizeClass, buf)) {
+            depots[sizeClass].offer(buf);
+        }
+    }
+
+    /**
+     * @return the number of size classes.
+     */
+    public int getClassCount() {
+        return classSizes.length;
+    }
+
+    /**
+     * @param sizeClass Integer represents the index of the size class.
+     * @return the size of the buffers of the given class.
+     */
+    public int getClassSize(int sizeClass) {
+        return classSizes[sizeClass];
+    }
+
+    /**
+     * @param minCapacity Integer represents a number of bytes.
+     * @return the index of the smallest class that fits the given number of bytes, or the largest class.
+     */
+    public int classOf(int minCapacity) {
+        for (int i = 0; i < classSizes.length; i++) {
+            if (classSizes[i] >= minCapacity) {
+                return i;
+            }
+        }
+        return classSizes.length - 1;
+    }
+
+    private int exactClassOf(int capacity) {
+        for (int i = 0; i < classSizes.length; i++) {
+            if (classSizes[i] == capacity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the depot capacity that stayed idle during the last trim interval. Done by whichever thread uses the pool
+     * first after the interval ends.
+     */
+    private void maybeTrim() {
+        long trimAt = nextTrim.get();
+        long now = System.nanoTime();
+        if (now - trimAt < 0 || !nextTrim.compareAndSet(trimAt, now + TRIM_INTERVAL_NANOS)) {
+            return;
+        }
+        for (Depot depot : depots) {
+            trimmed.add(depot.trim());
+        }
+    }
+
+    /**
+     * @return the number of leases served from a cache or from the depot.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of leases that had to allocate a new buffer.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the fraction of the leases that were served without allocating, or 0 if nothing was leased yet.
+     */
+    public double getHitRate() {
+        long hit = getHitCount();
+        long total = hit + getMissCount();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * @return the number of buffers that are leased and were not released yet.
+     */
+    public long getOutstandingCount() {
+        return outstanding.sum();
+    }
+
+    /**
+     * @return the number of idle buffers that were dropped from the depot by trimming.
+     */
+    public long getTrimmedCount() {
+        return trimmed.sum();
+    }
+
+    /**
+     * @return the number of bytes held by the shared depot, not counting the caches of the threads.
+     */
+    public long getDepotBytes() {
+        long sum = 0;
+        for (int i = 0; i < depots.length; i++) {
+            sum += (long) depots[i].size.get() * classSizes[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("buffer pool: hits %d, misses %d (hit rate %.2f), outstanding %d, trimmed %d, depot %d bytes",
+                getHitCount(), getMissCount(), getHitRate(), getOutstandingCount(), getTrimmedCount(), getDepotBytes());
+    }
+
+    /**
+     * The shared buffers of a single size class.
+     */
+    private static final class Depot {
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final int capacity;
+        /**
+         * The smallest size of the depot since the last trim, that many buffers were not needed during the interval.
+         */
+        private final AtomicInteger lowestSize = new AtomicInteger(0);
+
+        private Depot(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private ByteBuffer poll() {
+            ByteBuffer buf = buffers.poll();
+            if (buf != null) {
+                lowestSize.accumulateAndGet(size.decrementAndGet(), Math::min);
+            }
+            return buf;
+        }
+
+        private void offer(ByteBuffer buf) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return;
+            }
+            buffers.add(buf);
+        }
+
+        /**
+         * @return the number of buffers that were dropped.
+         */
+        private int trim() {
+            int idle = lowestSize.get();
+            int dropped = 0;
+            while (dropped < idle && buffers.poll() != null) {
+                size.decrementAndGet();
+                dropped++;
+            }
+            lowestSize.set(size.get());
+            return dropped;
+        }
+    }
+
+    /**
+     * The buffers a single thread keeps for itself, used without any synchronization.
+     */
+    private final class ThreadCache {
+        private final ArrayDeque<ByteBuffer>[] buffers = newDeques(classSizes.length);
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private ArrayDeque<ByteBuffer>[] newDeques(int length) {
+            ArrayDeque<ByteBuffer>[] deques = new ArrayDeque[length];
+            for (int i = 0; i < deques.length; i++) {
+                deques[i] = new ArrayDeque<>();
+            }
+            return deques;
+        }
+
+        private ByteBuffer poll(int sizeClass) {
+            return buffers[sizeClass].pollLast();
+        }
+
+        private boolean offer(int sizeClass, ByteBuffer buf) {
+            ArrayDeque<ByteBuffer> cached = buffers[sizeClass];
+            if (cached.size() >= Math.max(1, THREAD_CACHE_BYTES_PER_CLASS / classSizes[sizeClass])) {
+                return false;
+            }
+            cached.addLast(buf);
+            return true;
+        }
+    }
+}
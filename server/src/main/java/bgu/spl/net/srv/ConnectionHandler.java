@@ -1,9 +1,40 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a message that was already encoded, so a message sent to many clients is encoded only once.
+     *
+     * @param msg   the message, for the decisions that depend on its content, or null if the frame holds several
+     *              messages that must not be dropped
+     * @param frame the encoded message, a view of its own that the handler may consume
+     */
+    void sendFrame(T msg, ByteBuffer frame);
+
+    /**
+     * Sends a message that was encoded once for several clients.
+     *
+     * @param msg   the message, for the decisions that depend on its content
+     * @param frame the encoded message, retained for this handler, which writes a view of its own and releases the
+     *              frame once it was written or dropped
+     */
+    void sendShared(T msg, SharedFrame frame);
+
+    /**
+     * Sends a range of a file as it is, after the messages that were sent before it.
+     *
+     * @param region the range of the file, the handler closes it once it was written or dropped
+     */
+    void sendRegion(FileRegion region);
+
+    /**
+     * @return the number of bytes that were sent and not written to the client yet
+     */
+    int getOutboundQueueBytes();
+
 }
\ No newline at end of file
@@ -5,6 +5,10 @@ import bgu.spl.net.api.bidi.Messages.Message;
 import bgu.spl.net.api.bidi.Messages.Notification;
 import bgu.spl.net.api.bidi.User;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.Collections;
 import java.util.List;
@@ -25,59 +29,113 @@ public class DataBase {
 
     private final ConcurrentHashMap<Integer, User> namesToLoginUsers;
 
-    private final List<Notification> messageHistory;
-    private final Lock sendLock;
-    private final Lock logLock;
+    /**
+     * The posts and private messages, kept on the disk, only the post counters of the users stay on the heap.
+     */
+    private final MessageLog messageHistory;
+    /**
+     * Logs every change of the users, so they are restored when the server starts again.
+     */
+    private final UserStore userStore;
+    private final OfflineMailboxes mailboxes;
     private final Lock userListLock;
     private final Lock registerLock;
-    private final ReadWriteLock sendOrLogLock;
     private final ReadWriteLock registerOrUserListLock;
 
+    /**
+     * Default Constructor, keeps the data of the server in the bgs-data directory of the working directory.
+     */
     public DataBase() {
+        this(Paths.get("bgs-data"), OfflineMailboxes.DEFAULT_MAX_MESSAGES, OfflineMailboxes.DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Restores the users that were registered before.
+     *
+     * @param dataDirectory      Path of the directory the data of the server is kept in, created if it does not exist.
+     * @param maxWaitingMessages Integer represents the number of messages that may wait for a user, the oldest are
+     *                           dropped beyond it.
+     * @param waitingTtlMillis   Long represents how long a message may wait for a user before it is dropped, 0 to
+     *                           keep it until the user logs in.
+     * @throws UncheckedIOException if the message history or the users can not be opened.
+     */
+    public DataBase(Path dataDirectory, int maxWaitingMessages, long waitingTtlMillis) {
         LocalDateTime now = LocalDateTime.now();
         this.YEAR = (short) now.getYear();
         this.MONTH = (short) now.getMonth().getValue();
         this.DAY = (short) now.getDayOfMonth();
         this.namesToRegisteredUsers = new ConcurrentHashMap<>();
         this.namesToLoginUsers = new ConcurrentHashMap<>();
-        this.sendOrLogLock = new ReentrantReadWriteLock(true);
-        this.sendLock = this.sendOrLogLock.readLock();
-        this.logLock = this.sendOrLogLock.writeLock();
         this.registerOrUserListLock = new ReentrantReadWriteLock(true);
         this.userListLock = this.registerOrUserListLock.readLock();
         this.registerLock = this.registerOrUserListLock.writeLock();
-        this.numberOfUsers = new AtomicInteger(0);
-        this.messageHistory = new Vector<>();
+        try {
+            this.messageHistory = new MessageLog(dataDirectory.resolve("history"));
+            this.mailboxes = new OfflineMailboxes(dataDirectory.resolve("mailboxes"), maxWaitingMessages,
+                    waitingTtlMillis, OfflineMailboxes.DEFAULT_HEAD_BUDGET_BYTES);
+            this.userStore = new UserStore(dataDirectory.resolve("users"), this.namesToRegisteredUsers, this.mailboxes);
+            this.numberOfUsers = new AtomicInteger(this.userStore.recover());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("can not open the data of the server in " + dataDirectory, ex);
+        }
+    }
+
+    /**
+     * Writes the changes that are not on the disk yet, called once when the server stops.
+     */
+    public void close() {
+        try {
+            this.userStore.close();
+            this.messageHistory.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 
     public User getUserByName(String name) {
         return this.namesToRegisteredUsers.get(name);
     }
 
-    public void registerUser(String userName, String password, short birthYear, short birthMonth, short birthDay) {
+    /**
+     * Registers a new user, returns once it is on the disk.
+     *
+     * @return true if the user was registered, false if it could not be written to the disk.
+     */
+    public boolean registerUser(String userName, String password, short birthYear, short birthMonth, short birthDay) {
         this.registerLock.lock();
-        int userNumber = this.generateUserNumber();
+        try {
+            int userNumber = this.generateUserNumber();
 
-        //create new user with the given details and add it to the data base.
-        short userAge = (short) (this.YEAR - birthYear);
-        if (birthMonth > this.MONTH || (birthMonth == this.MONTH && birthDay > this.DAY)) userAge--;
-        User newUser = new User(userName, password, userNumber, userAge);
+            //create new user with the given details and add it to the data base.
+            short userAge = (short) (this.YEAR - birthYear);
+            if (birthMonth > this.MONTH || (birthMonth == this.MONTH && birthDay > this.DAY)) userAge--;
+            User newUser = new User(userName, password, userNumber, userAge, this.mailboxes.create(userNumber));
 
-        this.namesToRegisteredUsers.put(userName, newUser);
-        this.registerLock.unlock();
+            this.userStore.register(newUser);
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            this.registerLock.unlock();
+        }
     }
 
     public void loginUser(User toLogin) {
-        this.logLock.lock();
         this.namesToLoginUsers.put(toLogin.getConnId(), toLogin);
-        this.logLock.unlock();
     }
 
+    /**
+     * Logs out the user of the given connection, returns once nothing is sent to the connection on its behalf anymore.
+     *
+     * @param connId Integer represents the id of the connection the user is logged in on.
+     */
     public void logoutUser(int connId) {
-        this.logLock.lock();
-        this.namesToLoginUsers.get(connId).logout();
-        this.namesToLoginUsers.remove(connId);
-        this.logLock.unlock();
+        User toLogout = this.namesToLoginUsers.get(connId);
+        if (toLogout != null) {
+            toLogout.logout();
+            this.namesToLoginUsers.remove(connId);
+        }
     }
 
     public boolean loginIsEmpty() {
@@ -97,31 +155,103 @@ public class DataBase {
             //if the wanted user is registered
             //updated the toCheck User following database
             if (!toCheck.getFollowing().contains(current) && !toCheck.getBlockedBy().contains(current)) {
-                toCheck.addFollowing(current);
-                current.addFollower(toCheck);
-                return true;
+                return this.storeFollow(toCheck, current, true);
             }
 
         } else {
             //unfollow
 
             if (toCheck.getFollowing().contains(current)) {
-                toCheck.removeFollowing(current);
-                current.removeFollower(toCheck);
-                return true;
+                return this.storeFollow(toCheck, current, false);
             }
 
         }
         return false;
     }
 
+    /**
+     * @return true if the change is on the disk.
+     */
+    private boolean storeFollow(User follower, User followee, boolean follow) {
+        try {
+            this.userStore.follow(follower, followee, follow);
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Makes a user block another one, and the two users stop following each other.
+     *
+     * @param blocker User who blocks.
+     * @param blocked User who is blocked.
+     * @return true if the block is on the disk.
+     */
+    public boolean blockUser(User blocker, User blocked) {
+        try {
+            this.userStore.block(blocker, blocked);
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Puts a notification in the waiting messages of a user, it is sent when the user logs in.
+     *
+     * @param recipient User to put the notification in the waiting messages of.
+     * @param toSave    Notification to put.
+     */
+    public void addWaitingMessage(User recipient, Notification toSave) {
+        try {
+            this.userStore.enqueue(recipient, toSave);
+        } catch (IOException ex) {
+            //the message still waits, it is only lost if the server stops before the user logs in.
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the oldest waiting messages of a user, once they were sent.
+     *
+     * @param recipient User whose waiting messages were sent.
+     * @param upToSeq   Long represents the number of the newest message that was sent.
+     */
+    public void removeWaitingMessages(User recipient, long upToSeq) {
+        try {
+            this.userStore.drain(recipient, upToSeq);
+        } catch (IOException ex) {
+            //the messages are removed, they are only sent again if the server stops before the next snapshot.
+            ex.printStackTrace();
+        }
+    }
+
     /**
      * Save a Message that was sent by a certain user in the MessageHistory database
      *
      * @param toSave Notification Message represents the message to Save in the Message history database
      */
     public void addToHistory(Notification toSave) {
-        this.messageHistory.add(toSave);
+        try {
+            this.messageHistory.append(toSave);
+        } catch (IOException ex) {
+            //the message is still delivered, only its copy in the history is lost.
+            ex.printStackTrace();
+        }
+        if (toSave.getPrivateMessageOrPublicPost() == 1) {
+            //the post count of the author is kept up to date here, so it is never counted from the history.
+            User author = this.namesToRegisteredUsers.get(toSave.getPostingUser());
+            if (author != null) {
+                try {
+                    this.userStore.post(author);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
     }
 
     /**
@@ -132,9 +262,18 @@ public class DataBase {
      * @param toSend       Notification message to send.
      */
     public void sendNotification(Connections<Message> connections, int connectionID, Notification toSend) {
-        this.sendLock.lock();
         connections.send(connectionID, toSend);
-        this.sendLock.unlock();
+    }
+
+    /**
+     * Send Notification message to several clients, encoding it once
+     *
+     * @param connections   Connections object that holds all the connections handler of the server.
+     * @param connectionIDs Integer array represents the ids of the recipient clients in the connections object.
+     * @param toSend        Notification message to send.
+     */
+    public void sendNotification(Connections<Message> connections, int[] connectionIDs, Notification toSend) {
+        connections.multicast(connectionIDs, toSend);
     }
 
     /**
@@ -168,19 +307,14 @@ public class DataBase {
     }
 
     /**
-     * calculates the number of posts of a certain user.
+     * returns the number of posts of a certain user, counted as they were added to the history.
      *
      * @param postingUser String represents the user that the function needs to calculate his post number in the server.
      * @return Short number represents the amount of posts the posting user posted.
      */
     public short returnNumberOfPosts(String postingUser) {
-        short output = 0;
-        for (Notification msg : messageHistory) {
-            if ((msg.getPrivateMessageOrPublicPost() == 1) && (msg.getPostingUser().equals(postingUser))) {
-                output++;
-            }
-        }
-        return output;
+        User user = this.namesToRegisteredUsers.get(postingUser);
+        return user == null ? 0 : user.getPostsAmm();
     }
 
 }
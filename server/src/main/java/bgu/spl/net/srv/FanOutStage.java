@@ -0,0 +1,429 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Connections;
+import bgu.spl.net.api.bidi.Messages.Message;
+import bgu.spl.net.api.bidi.Messages.Notification;
+import bgu.spl.net.api.bidi.User;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers posts and private messages to their recipients off the thread of the sender.
+ * Every recipient is served by a single worker, chosen by hashing the recipient, so the notifications of a recipient are
+ * delivered in the order they were submitted. A worker sends one notification to all of its connected recipients with a
+ * single multicast, and puts it in the waiting messages of the rest.
+ * The waiting messages of a user who logs in are replayed by the same worker, so they reach the client before every
+ * notification that is delivered after them, without any lock shared with the other users. A replay sends the waiting
+ * messages in chunks - the frames on the heap coalesced into a single write, the spilled ones as a region of the spill
+ * file that goes to the socket without entering the heap - and keeps at most a budget of bytes queued for the client
+ * at a time: once the budget is used the worker goes on with its other deliveries and continues the replay after the
+ * client read some of it. Notifications that arrive meanwhile are put in the waiting messages, after the ones being
+ * replayed, and the user is online only once the waiting messages ran out.
+ * The same replay delivers the notifications a slow client had parked, so they arrive while the user stays online and
+ * before the notifications that come after them.
+ */
+public class FanOutStage {
+
+    /**
+     * The maximal number of deliveries a worker takes from its queue at once.
+     */
+    private static final int MAX_DRAIN = 64;
+    /**
+     * The number of bytes of waiting messages that are sent at once.
+     */
+    private static final int REPLAY_CHUNK_BYTES = 64 << 10;
+    public static final int DEFAULT_REPLAY_BUDGET_BYTES = 256 << 10;
+    /**
+     * How long a worker whose replays all wait for their clients to read waits for new deliveries before it checks
+     * them again.
+     */
+    private static final long REPLAY_RETRY_MILLIS = 2;
+    /**
+     * How long closing the stage waits for each worker to deliver what was submitted before.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    /**
+     * Put in the queue of every worker when the stage is closed, the worker stops once it took it.
+     */
+    private static final Delivery STOP = new Delivery(null, Collections.<User>emptyList(), null, 0);
+
+    private final DataBase dataBase;
+    private final int replayBudgetBytes;
+    private final BlockingQueue<Delivery>[] queues;
+    private final Thread[] workers;
+
+    private final AtomicLong queueDepth = new AtomicLong(0);
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder totalLagNanos = new LongAdder();
+    private final AtomicLong maxLagNanos = new AtomicLong(0);
+
+    /**
+     * Default Constructor.
+     *
+     * @param numWorkers Integer represents the number of delivery threads.
+     * @param dataBase   DataBase of the server.
+     */
+    public FanOutStage(int numWorkers, DataBase dataBase) {
+        this(numWorkers, dataBase, DEFAULT_REPLAY_BUDGET_BYTES);
+    }
+
+    /**
+     * @param numWorkers        Integer represents the number of delivery threads.
+     * @param dataBase          DataBase of the server.
+     * @param replayBudgetBytes Integer represents the number of bytes a replay of waiting messages may keep queued for
+     *                          the client, should be under the point the connection treats the client as slow.
+     */
+    public FanOutStage(int numWorkers, DataBase dataBase, int replayBudgetBytes) {
+        this.dataBase = dataBase;
+        this.replayBudgetBytes = replayBudgetBytes;
+        this.queues = newQueues(Math.max(1, numWorkers));
+        this.workers = new Thread[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            final BlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+            queues[i] = queue;
+            workers[i] = new Thread(() -> work(queue), "fan-out-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the given notification for delivery to the given users and returns right away.
+     *
+     * @param connections Connections object to send the notification through.
+     * @param recipients  List of the users to deliver the notification to.
+     * @param toSend      Notification to deliver.
+     */
+    public void submit(Connections<Message> connections, List<User> recipients, Notification toSend) {
+        long now = System.nanoTime();
+        if (queues.length == 1) {
+            enqueue(0, new Delivery(connections, recipients, toSend, now));
+            return;
+        }
+        List<User>[] groups = newGroups(queues.length);
+        for (User recipient : recipients) {
+            int worker = workerOf(recipient);
+            if (groups[worker] == null) {
+                groups[worker] = new ArrayList<>();
+            }
+            groups[worker].add(recipient);
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] != null) {
+                enqueue(i, new Delivery(connections, groups[i], toSend, now));
+            }
+        }
+    }
+
+    /**
+     * Queues the replay of the waiting messages of a user who started logging in, or whose notifications were parked
+     * because its client was slow, the user is online once they were sent.
+     *
+     * @param connections  Connections object to send the messages through.
+     * @param user         User who started logging in.
+     * @param connectionId Integer represents the id of the connection the user logs in on.
+     */
+    public void submitLogin(Connections<Message> connections, User user, int connectionId) {
+        enqueue(workerOf(user), new Delivery(connections, user, connectionId, System.nanoTime()));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static BlockingQueue<Delivery>[] newQueues(int length) {
+        return new BlockingQueue[length];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<User>[] newGroups(int length) {
+        return new List[length];
+    }
+
+    private int workerOf(User recipient) {
+        return (recipient.hashCode() & Integer.MAX_VALUE) % queues.length;
+    }
+
+    private void enqueue(int worker, Delivery delivery) {
+        queueDepth.incrementAndGet();
+        queues[worker].add(delivery);
+    }
+
+    private void work(BlockingQueue<Delivery> queue) {
+        List<Delivery> batch = new ArrayList<>(MAX_DRAIN);
+        //the replays of this worker that wait for their clients to read.
+        List<Replay> replays = new ArrayList<>();
+        boolean progressed = false;
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                Delivery first;
+                if (replays.isEmpty()) {
+                    first = queue.take();
+                } else if (progressed) {
+                    first = queue.poll();
+                } else {
+                    first = queue.poll(REPLAY_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_DRAIN - 1);
+                }
+                for (Delivery delivery : batch) {
+                    try {
+                        if (delivery == STOP) {
+                            //the deliveries before it are done, the ones after it were submitted too late.
+                            stopping = true;
+                            break;
+                        } else if (delivery.toSend == null) {
+                            replays.add(new Replay(delivery.connections, delivery.recipients.get(0),
+                                    delivery.loginConnectionId));
+                        } else {
+                            deliver(delivery);
+                        }
+                    } catch (RuntimeException ex) {
+                        //one failed delivery must not stop the worker of all the recipients it serves.
+                        ex.printStackTrace();
+                    }
+                }
+                progressed = resumeReplays(replays);
+                long now = System.nanoTime();
+                for (Delivery delivery : batch) {
+                    if (delivery != STOP) {
+                        recordLag(now - delivery.submittedNanos);
+                    }
+                }
+                queueDepth.addAndGet(-batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            //the stage was closed and did not finish in time.
+        }
+    }
+
+    private void deliver(Delivery delivery) {
+        int[] connected = new int[delivery.recipients.size()];
+        User[] acquired = new User[connected.length];
+        int connectedCount = 0;
+        try {
+            for (User recipient : delivery.recipients) {
+                int connId = recipient.acquireSession();
+                if (connId > 0) {
+                    acquired[connectedCount] = recipient;
+                    connected[connectedCount++] = connId;
+                } else {
+                    //offline, or logging in and its waiting messages are sent by this worker later on.
+                    this.dataBase.addWaitingMessage(recipient, delivery.toSend);
+                }
+            }
+            if (connectedCount > 0) {
+                this.dataBase.sendNotification(delivery.connections, Arrays.copyOf(connected, connectedCount), delivery.toSend);
+            }
+        } finally {
+            for (int i = 0; i < connectedCount; i++) {
+                acquired[i].releaseSession();
+            }
+        }
+    }
+
+    /**
+     * Continues every replay for as long as its client has room, dropping the ones that ended.
+     *
+     * @return true if any replay sent something.
+     */
+    private boolean resumeReplays(List<Replay> replays) {
+        boolean progressed = false;
+        Iterator<Replay> pending = replays.iterator();
+        while (pending.hasNext()) {
+            Replay replay = pending.next();
+            try {
+                long before = replay.sentBytes;
+                if (replay(replay)) {
+                    pending.remove();
+                }
+                progressed |= replay.sentBytes != before;
+            } catch (RuntimeException ex) {
+                pending.remove();
+                ex.printStackTrace();
+            }
+        }
+        return progressed;
+    }
+
+    /**
+     * Sends the next waiting messages of a login, while the client has room for them and at most a budget of bytes, so
+     * a long replay does not hold the worker from its other recipients.
+     *
+     * @return true if the replay ended, either because the user is online or because the login was given up.
+     */
+    private boolean replay(Replay replay) {
+        User user = replay.user;
+        if (!user.acquireLogin(replay.connectionId)) {
+            //logged out before its waiting messages were sent, the rest waits for the next login.
+            return true;
+        }
+        boolean online = false;
+        try {
+            long turnBytes = 0;
+            while (turnBytes < this.replayBudgetBytes) {
+                int queued = replay.connections.getOutboundQueueBytes(replay.connectionId);
+                if (queued < 0) {
+                    //the connection closed, the user is logged out by it.
+                    return true;
+                }
+                if (queued >= this.replayBudgetBytes) {
+                    return false;
+                }
+                OfflineMailbox.Chunk chunk = user.getWaitingMessages().nextChunk(REPLAY_CHUNK_BYTES);
+                if (chunk == null) {
+                    //nothing more can arrive meanwhile, the notifications of this user are delivered by this thread.
+                    online = true;
+                    return true;
+                }
+                long bytes = chunk.size();
+                boolean sent;
+                if (chunk.getRegion() != null) {
+                    sent = replay.connections.sendRegion(replay.connectionId, chunk.getRegion());
+                    if (!sent) {
+                        chunk.getRegion().close();
+                    }
+                } else {
+                    sent = replay.connections.sendEncoded(replay.connectionId, null, chunk.getFrames());
+                }
+                if (!sent) {
+                    return true;
+                }
+                //removed only once they were sent, so a message that was not sent yet is restored after a crash.
+                this.dataBase.removeWaitingMessages(user, chunk.getLastSeq());
+                turnBytes += bytes;
+                replay.sentBytes += bytes;
+            }
+            return false;
+        } finally {
+            if (online) {
+                user.finishLogin(replay.connectionId);
+            } else {
+                user.releaseSession();
+            }
+        }
+    }
+
+    private void recordLag(long lagNanos) {
+        delivered.increment();
+        totalLagNanos.add(lagNanos);
+        maxLagNanos.accumulateAndGet(lagNanos, Math::max);
+    }
+
+    /**
+     * @return the number of deliveries that were submitted and not done yet.
+     */
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the number of deliveries that were done.
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the average time in nanoseconds from the submission of a delivery until it was done, 0 if none was.
+     */
+    public long getAverageLagNanos() {
+        long count = delivered.sum();
+        return count == 0 ? 0 : totalLagNanos.sum() / count;
+    }
+
+    /**
+     * @return the longest time in nanoseconds from the submission of a delivery until it was done.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos.get();
+    }
+
+    /**
+     * Stops the delivery threads once they delivered everything that was submitted before, and waits for them. Replays
+     * that did not end leave the rest of their messages in the waiting messages. Has to be called after nothing is
+     * submitted anymore.
+     */
+    public void close() {
+        for (int i = 0; i < queues.length; i++) {
+            enqueue(i, STOP);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+        try {
+            for (Thread worker : workers) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                worker.join(Math.max(1, left));
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fan-out: delivered %d, queue depth %d, average lag %d us, max lag %d us",
+                getDeliveredCount(), getQueueDepth(), TimeUnit.NANOSECONDS.toMicros(getAverageLagNanos()),
+                TimeUnit.NANOSECONDS.toMicros(getMaxLagNanos()));
+    }
+
+    /**
+     * The waiting messages of a user who logs in, sent a chunk at a time.
+     */
+    private static final class Replay {
+        private final Connections<Message> connections;
+        private final User user;
+        private final int connectionId;
+        /**
+         * The number of bytes that were replayed so far, only used to tell whether a turn sent anything.
+         */
+        private long sentBytes;
+
+        private Replay(Connections<Message> connections, User user, int connectionId) {
+            this.connections = connections;
+            this.user = user;
+            this.connectionId = connectionId;
+        }
+    }
+
+    /**
+     * A notification on its way to the recipients that are served by a single worker, or the waiting messages of a
+     * user who logs in, if there is no notification.
+     */
+    private static final class Delivery {
+        private final Connections<Message> connections;
+        private final List<User> recipients;
+        private final Notification toSend;
+        private final int loginConnectionId;
+        private final long submittedNanos;
+
+        private Delivery(Connections<Message> connections, List<User> recipients, Notification toSend, long submittedNanos) {
+            this.connections = connections;
+            this.recipients = recipients;
+            this.toSend = toSend;
+            this.loginConnectionId = -1;
+            this.submittedNanos = submittedNanos;
+        }
+
+        private Delivery(Connections<Message> connections, User user, int loginConnectionId, long submittedNanos) {
+            this.connections = connections;
+            this.recipients = Collections.singletonList(user);
+            this.toSend = null;
+            this.loginConnectionId = loginConnectionId;
+            this.submittedNanos = submittedNanos;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of a file that is sent to a client as it is, with FileChannel.transferTo, so its bytes go from the file to
+ * the socket without passing through the heap.
+ * The region owns its channel, which is closed once the region was sent or dropped.
+ */
+public final class FileRegion {
+
+    private final FileChannel file;
+    private long position;
+    private final long end;
+
+    /**
+     * @param file     FileChannel to send from, owned by the region from now on.
+     * @param position Long represents the position of the first byte to send.
+     * @param count    Long represents the number of bytes to send.
+     */
+    public FileRegion(FileChannel file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * @return the number of bytes that were not sent yet.
+     */
+    public long remaining() {
+        return end - position;
+    }
+
+    /**
+     * Sends as much of the region as the target takes.
+     *
+     * @param target WritableByteChannel to send to.
+     * @return the number of bytes that were sent.
+     */
+    /*package*/ long transferTo(WritableByteChannel target) throws IOException {
+        long sent = file.transferTo(position, end - position, target);
+        position += sent;
+        return sent;
+    }
+
+    /**
+     * Closes the channel of the region, whether it was sent or not.
+     */
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed wheel of timeouts, owned by the thread of a single SubReactor and advanced by its selection loop.
+ * Scheduling and cancelling a timeout are O(1) and allocate nothing: every timeout is a node that is linked into the
+ * bucket of its deadline tick, and a node can be rescheduled any number of times. A timeout fires on the first tick
+ * after its deadline, so its precision is a single tick.
+ * Not thread safe - only used by the selector thread.
+ */
+final class HashedWheelTimer {
+
+    private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long startNanos;
+    /**
+     * The last tick whose bucket was expired.
+     */
+    private long tick = 0;
+    private int size = 0;
+
+    /*package*/ HashedWheelTimer() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickNanos Long represents the duration of a single tick in nanoseconds.
+     * @param wheelSize Integer represents the number of buckets, rounded up to a power of two.
+     */
+    /*package*/ HashedWheelTimer(long tickNanos, int wheelSize) {
+        if (tickNanos < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("the tick and the wheel size must be positive");
+        }
+        int buckets = Integer.highestOneBit(wheelSize);
+        if (buckets < wheelSize) {
+            buckets <<= 1;
+        }
+        this.tickNanos = tickNanos;
+        this.wheel = new Timeout[buckets];
+        this.mask = buckets - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedules the given timeout, replacing its previous schedule if it had one.
+     *
+     * @param timeout     Timeout to schedule.
+     * @param deadline    Long represents the System.nanoTime() at which the timeout expires.
+     */
+    /*package*/ void schedule(Timeout timeout, long deadline) {
+        cancel(timeout);
+        long deadlineTick = Math.max(tick + 1, (deadline - startNanos + tickNanos - 1) / tickNanos);
+        timeout.remainingRounds = (deadlineTick - tick - 1) / wheel.length;
+        int bucket = (int) (deadlineTick & mask);
+        timeout.next = wheel[bucket];
+        if (wheel[bucket] != null) {
+            wheel[bucket].prev = timeout;
+        }
+        wheel[bucket] = timeout;
+        timeout.bucket = bucket;
+        size++;
+    }
+
+    /**
+     * Removes the given timeout from the wheel, if it is scheduled.
+     *
+     * @param timeout Timeout to cancel.
+     */
+    /*package*/ void cancel(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Expires every timeout whose tick has passed.
+     *
+     * @param now Long represents the current System.nanoTime().
+     */
+    /*package*/ void advance(long now) {
+        long elapsedTicks = (now - startNanos) / tickNanos;
+        while (tick < elapsedTicks && size > 0) {
+            tick++;
+            expireBucket((int) (tick & mask), now);
+        }
+        if (size == 0) {
+            //nothing is scheduled, so the skipped buckets are empty anyway.
+            tick = Math.max(tick, elapsedTicks);
+        }
+    }
+
+    private void expireBucket(int bucket, long now) {
+        //detached first, so timeouts that are rescheduled into this bucket wait for its next turn.
+        Timeout timeout = wheel[bucket];
+        wheel[bucket] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            if (timeout.remainingRounds <= 0) {
+                timeout.bucket = -1;
+                size--;
+                timeout.expire(now);
+            } else {
+                timeout.remainingRounds--;
+                timeout.next = wheel[bucket];
+                if (wheel[bucket] != null) {
+                    wheel[bucket].prev = timeout;
+                }
+                wheel[bucket] = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * @param now Long represents the current System.nanoTime().
+     * @return the number of milliseconds until the next tick, for the select timeout, or 0 if nothing is scheduled.
+     */
+    /*package*/ long millisToNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long nextTickNanos = startNanos + (tick + 1) * tickNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickNanos - now + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @return the number of scheduled timeouts.
+     */
+    /*package*/ int size() {
+        return size;
+    }
+
+    /**
+     * A node of the wheel. A subclass decides what happens when it expires, and may schedule itself again from there.
+     */
+    /*package*/ abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long remainingRounds;
+
+        /**
+         * @return true if the timeout is scheduled.
+         */
+        /*package*/ boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * Called by the selector thread once the deadline of the timeout passed.
+         *
+         * @param now Long represents the current System.nanoTime().
+         */
+        /*package*/ abstract void expire(long now);
+    }
+}
@@ -0,0 +1,642 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append only log of the posts and private messages, kept on the local disk instead of the heap.
+ * The log is a directory of segment files, each named after the index of its first message. New messages are written
+ * to the last segment through a memory mapping, and a new segment is started once it is full. Whole segments are
+ * deleted, oldest first, once the log is larger than its size limit or a segment is older than the age limit.
+ * The heap only keeps a small index of every segment: its first index, its number of messages and the position of
+ * every {@value #INDEX_INTERVAL}th message.
+ * <p>
+ * Appending takes no lock. A message reserves its place in the last segment with a single compare and set of the
+ * number of messages and bytes of the segment, and then writes its record through a view of its own, so the messages
+ * of different senders are written at the same time. The message that finds the segment full seals it and puts a
+ * spare segment in its place. A background thread keeps the spare segment ready, writes the sealed segments to the
+ * disk and deletes the segments that are over the limits, so a sender that fills a segment only renames the spare.
+ * <p>
+ * Appending does not wait for the disk. The background thread writes the last segment to the disk every
+ * {@value #MAINTENANCE_MILLIS} milliseconds, so a crash of the machine loses the messages of about the last second.
+ * <p>
+ * A record is the length of the rest of it (int), the kind of the message (byte), the time it was appended in
+ * milliseconds (long), the length of the posting user (short) and then the posting user and the content in UTF-8.
+ * The length is written last, so a record that was cut by a crash reads as the end of the segment, and so do the
+ * records of other senders that were written after it.
+ */
+public class MessageLog {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    public static final long DEFAULT_RETENTION_BYTES = 1L << 30;
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String SUFFIX = ".log";
+    private static final String SPARE_SUFFIX = ".spare";
+    private static final int HEADER_BYTES = 4;
+    /**
+     * The kind, the time and the length of the posting user.
+     */
+    private static final int FIXED_BYTES = 1 + 8 + 2;
+    private static final int INDEX_INTERVAL = 256;
+    /**
+     * How often the background thread writes the last segment to the disk and checks the limits, when no segment is
+     * sealed meanwhile.
+     */
+    private static final long MAINTENANCE_MILLIS = 1000;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    /**
+     * The segments from the oldest to the newest, the last one is appended to. Replaced as a whole while holding the
+     * roll lock, read without it.
+     */
+    private volatile Segment[] segments;
+    private final Object rollLock = new Object();
+    /**
+     * An empty segment that takes the place of the last one once it is full, or null while it is being created.
+     */
+    private final AtomicReference<Segment> spare = new AtomicReference<>();
+    private final AtomicInteger spareNumber = new AtomicInteger(0);
+    /**
+     * The sealed segments that were not written to the disk yet.
+     */
+    private final Queue<Segment> unforced = new ConcurrentLinkedQueue<>();
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private volatile boolean closed;
+    private final Thread maintainer;
+    /**
+     * The last segment and its number of written records when the background thread last wrote it to the disk, only
+     * used by that thread.
+     */
+    private Segment forcedSegment;
+    private int forcedRecords;
+
+    /**
+     * Opens the log in the given directory with the default limits, creating it if it does not exist.
+     *
+     * @param directory Path of the directory of the segments.
+     */
+    public MessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if it does not exist. Messages that were appended before are
+     * kept and the next message is appended after them.
+     *
+     * @param directory       Path of the directory of the segments.
+     * @param segmentBytes    Integer represents the size of a segment file in bytes.
+     * @param retentionBytes  Long represents the size the log may reach before its oldest segments are deleted, 0 for
+     *                        no limit.
+     * @param retentionMillis Long represents how long a segment is kept after its last message, 0 for no limit.
+     */
+    public MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        if (segmentBytes <= HEADER_BYTES + FIXED_BYTES) {
+            throw new IllegalArgumentException("segments of " + segmentBytes + " bytes can not hold a message");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        recover();
+        this.maintainer = new Thread(this::maintain, "message-log");
+        this.maintainer.setDaemon(true);
+        this.maintainer.start();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SPARE_SUFFIX)) {
+                    //created for a roll that did not happen before the server stopped.
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null); //the names are zero padded, so they sort by the first index.
+        List<Segment> recovered = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = file.getFileName().toString();
+            boolean last = i == files.size() - 1;
+            Segment segment = Segment.scan(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), last);
+            recovered.add(segment);
+            totalBytes.addAndGet(segment.size());
+        }
+        if (recovered.isEmpty()) {
+            recovered.add(Segment.create(segmentPath(0), 0, segmentBytes));
+        }
+        segments = recovered.toArray(new Segment[0]);
+        retain(System.currentTimeMillis());
+    }
+
+    /**
+     * Appends the given message to the log. May be called by many threads at once.
+     *
+     * @param toSave Notification to append.
+     * @return the index of the message in the log.
+     * @throws IOException if the log is closed, or a new segment is needed and can not be created.
+     */
+    public long append(Notification toSave) throws IOException {
+        byte[] user = toSave.getPostingUser().getBytes(StandardCharsets.UTF_8);
+        byte[] content = toSave.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_BYTES + user.length + content.length;
+        long now = System.currentTimeMillis();
+        while (true) {
+            if (closed) {
+                throw new IOException("the message log is closed");
+            }
+            Segment active = lastSegment();
+            long reserved = active.reserve(HEADER_BYTES + length);
+            if (reserved == Segment.FULL) {
+                roll(active, HEADER_BYTES + length);
+                continue;
+            }
+            if (reserved == Segment.SEALED) {
+                //another sender is putting the spare segment in its place.
+                Thread.yield();
+                continue;
+            }
+            int count = Segment.countOf(reserved);
+            int position = Segment.positionOf(reserved);
+            ByteBuffer buffer = active.buffer.duplicate();
+            buffer.position(position + HEADER_BYTES);
+            buffer.put(toSave.getPrivateMessageOrPublicPost());
+            buffer.putLong(now);
+            buffer.putShort((short) user.length);
+            buffer.put(user);
+            buffer.put(content);
+            //the length makes the record visible, so it goes last.
+            buffer.putInt(position, length);
+            active.appended(count, position, now);
+            totalBytes.addAndGet(HEADER_BYTES + length);
+            return active.baseIndex + count;
+        }
+    }
+
+    /**
+     * Reads a message of the log.
+     *
+     * @param index Long represents the index the message was appended at.
+     * @return the message, or null if it was deleted already or was never appended.
+     */
+    public Notification read(long index) {
+        Segment segment = segmentOf(segments, index);
+        if (segment == null) {
+            return null;
+        }
+        int relative = (int) (index - segment.baseIndex);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = segment.indexedPosition(relative / INDEX_INTERVAL);
+        for (int i = relative - relative % INDEX_INTERVAL; i < relative; i++) {
+            position += HEADER_BYTES + segment.lengthAt(buffer, position);
+        }
+        segment.lengthAt(buffer, position);
+        return decode(buffer, position);
+    }
+
+    private static Segment segmentOf(Segment[] segments, long index) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments[mid];
+            if (index < segment.baseIndex) {
+                high = mid - 1;
+            } else if (index >= segment.baseIndex + segment.count()) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private static Notification decode(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        buffer.position(position + HEADER_BYTES);
+        byte kind = buffer.get();
+        buffer.getLong(); //the time is only used for the retention.
+        byte[] user = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(user);
+        byte[] content = new byte[length - FIXED_BYTES - user.length];
+        buffer.get(content);
+        return new Notification(kind, new String(user, StandardCharsets.UTF_8), new String(content, StandardCharsets.UTF_8));
+    }
+
+    private Segment lastSegment() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    /**
+     * @return the index the next message will be appended at.
+     */
+    public long nextIndex() {
+        Segment active = lastSegment();
+        return active.baseIndex + active.count();
+    }
+
+    /**
+     * @return the index of the oldest message that was not deleted yet.
+     */
+    public long firstIndex() {
+        return segments[0].baseIndex;
+    }
+
+    /**
+     * @return the number of bytes the messages of the log take on the disk.
+     */
+    public long sizeInBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Writes the segments to the disk and stops the background thread. Has to be called after nothing is appended
+     * anymore, the log can not be used after it was closed.
+     */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(maintainer);
+        try {
+            maintainer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        forceSealed();
+        lastSegment().buffer.force();
+        Segment unused = spare.getAndSet(null);
+        if (unused != null) {
+            Files.deleteIfExists(unused.path);
+        }
+    }
+
+    /**
+     * Seals the given segment, which the caller found full, and puts the spare segment in its place. Only creates a
+     * segment itself if the background thread did not prepare one yet, or the record is larger than a segment.
+     *
+     * @param full        Segment the caller sealed.
+     * @param recordBytes Integer represents the size of the record that did not fit.
+     */
+    private void roll(Segment full, int recordBytes) throws IOException {
+        int count = full.count();
+        long baseIndex = full.baseIndex + count;
+        Segment next = spare.getAndSet(null);
+        try {
+            if (next != null && next.buffer.capacity() < recordBytes) {
+                spare.compareAndSet(null, next);
+                next = null;
+            }
+            if (next == null) {
+                next = Segment.create(sparePath(), 0, Math.max(segmentBytes, recordBytes));
+            }
+            if (count == 0) {
+                //too small for the message that is appended, an empty segment is replaced rather than sealed.
+                Files.delete(full.path);
+            }
+            next.activate(segmentPath(baseIndex), baseIndex);
+        } catch (IOException ex) {
+            //the next sender tries again.
+            full.unseal();
+            throw ex;
+        }
+        synchronized (rollLock) {
+            Segment[] current = segments;
+            Segment[] updated;
+            if (count == 0) {
+                updated = current.clone();
+            } else {
+                updated = Arrays.copyOf(current, current.length + 1);
+                unforced.add(full);
+            }
+            updated[updated.length - 1] = next;
+            segments = updated;
+        }
+        LockSupport.unpark(maintainer);
+    }
+
+    private void maintain() {
+        while (!closed) {
+            try {
+                if (spare.get() == null) {
+                    Segment created = Segment.create(sparePath(), 0, segmentBytes);
+                    if (!spare.compareAndSet(null, created)) {
+                        Files.delete(created.path);
+                    }
+                }
+                forceSealed();
+                forceLast();
+                retain(System.currentTimeMillis());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(MAINTENANCE_MILLIS));
+        }
+    }
+
+    /**
+     * Writes the sealed segments whose records were all written to the disk.
+     */
+    private void forceSealed() {
+        Segment sealed;
+        while ((sealed = unforced.peek()) != null && sealed.isComplete()) {
+            sealed.buffer.force();
+            unforced.remove();
+        }
+    }
+
+    /**
+     * Writes the last segment to the disk, if records were written to it since it was last written.
+     */
+    private void forceLast() {
+        Segment active = lastSegment();
+        int records = active.written.get();
+        if (active != forcedSegment || records != forcedRecords) {
+            active.buffer.force();
+            forcedSegment = active;
+            forcedRecords = records;
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segments that are over the limits.
+     */
+    private void retain(long now) throws IOException {
+        List<Segment> deleted = new ArrayList<>();
+        synchronized (rollLock) {
+            Segment[] current = segments;
+            int first = 0;
+            long bytes = totalBytes.get();
+            while (current.length - first > 1) {
+                Segment oldest = current[first];
+                boolean tooLarge = retentionBytes > 0 && bytes > retentionBytes;
+                boolean tooOld = retentionMillis > 0 && oldest.lastMillis < now - retentionMillis;
+                if ((!tooLarge && !tooOld) || !oldest.isComplete()) {
+                    break;
+                }
+                bytes -= oldest.size();
+                deleted.add(oldest);
+                first++;
+            }
+            if (first > 0) {
+                segments = Arrays.copyOfRange(current, first, current.length);
+            }
+        }
+        for (Segment segment : deleted) {
+            totalBytes.addAndGet(-segment.size());
+            //readers that still hold the mapping keep reading it after the file is gone.
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    private Path segmentPath(long baseIndex) {
+        return directory.resolve(String.format("%020d%s", baseIndex, SUFFIX));
+    }
+
+    private Path sparePath() {
+        return directory.resolve(spareNumber.getAndIncrement() + SPARE_SUFFIX);
+    }
+
+    /**
+     * A single file of the log and its index.
+     */
+    private static final class Segment {
+        /**
+         * The state of a segment is a single long: bits 0-31 hold the number of bytes that were reserved for records,
+         * bits 32-62 the number of messages, and the sign bit is set once the segment is sealed.
+         */
+        private static final long ONE_MESSAGE = 1L << 32;
+        private static final long SEALED_BIT = Long.MIN_VALUE;
+        /**
+         * Returned by reserve to the sender that sealed the segment.
+         */
+        private static final long FULL = -1;
+        /**
+         * Returned by reserve once the segment was sealed by another sender.
+         */
+        private static final long SEALED = -2;
+
+        private Path path;
+        private long baseIndex;
+        /**
+         * The mapping of the whole file, kept for reading after the segment was sealed.
+         */
+        private final MappedByteBuffer buffer;
+        private final AtomicLong state;
+        /**
+         * The number of messages whose records were written, the rest are still being written by their senders.
+         */
+        private final AtomicInteger written;
+        /**
+         * The position of every INDEX_INTERVAL-th message plus one, 0 until it is known.
+         */
+        private final AtomicIntegerArray index;
+        private volatile long lastMillis;
+
+        private Segment(Path path, long baseIndex, MappedByteBuffer buffer, long lastMillis) {
+            this.path = path;
+            this.baseIndex = baseIndex;
+            this.buffer = buffer;
+            this.state = new AtomicLong(0);
+            this.written = new AtomicInteger(0);
+            //enough for a segment full of empty messages.
+            this.index = new AtomicIntegerArray(buffer.capacity() / (HEADER_BYTES + FIXED_BYTES) / INDEX_INTERVAL + 1);
+            this.lastMillis = lastMillis;
+        }
+
+        private static Segment create(Path path, long baseIndex, int capacity) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                //mapping past the end of the file grows it, the rest of the file reads as zeros.
+                return new Segment(path, baseIndex, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity),
+                        System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Maps an existing segment and rebuilds its index from the records in the file.
+         *
+         * @param last true for the last segment, which is appended to, the others are sealed.
+         */
+        private static Segment scan(Path path, long baseIndex, boolean last) throws IOException {
+            MappedByteBuffer records;
+            try (FileChannel channel = FileChannel.open(path, last
+                    ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                    : new StandardOpenOption[]{StandardOpenOption.READ})) {
+                records = channel.map(last ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            }
+            Segment segment = new Segment(path, baseIndex, records, Files.getLastModifiedTime(path).toMillis());
+            int position = 0;
+            int count = 0;
+            while (position + HEADER_BYTES + FIXED_BYTES <= records.limit()) {
+                int length = records.getInt(position);
+                if (length < FIXED_BYTES || position + HEADER_BYTES + length > records.limit()) {
+                    break;
+                }
+                segment.appended(count++, position, records.getLong(position + HEADER_BYTES + 1));
+                position += HEADER_BYTES + length;
+            }
+            if (last) {
+                clearTail(records, position);
+            }
+            segment.state.set(count * ONE_MESSAGE + position | (last ? 0 : SEALED_BIT));
+            return segment;
+        }
+
+        /**
+         * Zeros the last segment after its last record, before anything is appended to it. A crash may leave finished
+         * records behind a record that was never finished, where the scan stops. New records are written over the
+         * unfinished one, and a later scan would read the stale records behind them as messages.
+         *
+         * @param from Integer represents the position right after the last record.
+         */
+        private static void clearTail(MappedByteBuffer records, int from) {
+            //the rest of a segment is usually never written, and reading it is cheap where the file has no blocks.
+            int end = from;
+            int position = from;
+            for (; position + Long.BYTES <= records.limit(); position += Long.BYTES) {
+                if (records.getLong(position) != 0) {
+                    end = position + Long.BYTES;
+                }
+            }
+            for (; position < records.limit(); position++) {
+                if (records.get(position) != 0) {
+                    end = position + 1;
+                }
+            }
+            if (end == from) {
+                return;
+            }
+            for (position = from; position < end; position++) {
+                records.put(position, (byte) 0);
+            }
+            records.force();
+        }
+
+        /**
+         * Gives the spare segment its place in the log.
+         */
+        private void activate(Path target, long baseIndex) throws IOException {
+            Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+            this.path = target;
+            this.baseIndex = baseIndex;
+            this.lastMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Reserves the place of a record.
+         *
+         * @return the state before the record, holding its number in the segment and its position, FULL if it does not
+         * fit and the caller sealed the segment, or SEALED if the segment was sealed before.
+         */
+        private long reserve(int recordBytes) {
+            while (true) {
+                long current = state.get();
+                if (current < 0) {
+                    return SEALED;
+                }
+                if (positionOf(current) + (long) recordBytes > buffer.capacity()) {
+                    if (state.compareAndSet(current, current | SEALED_BIT)) {
+                        return FULL;
+                    }
+                } else if (state.compareAndSet(current, current + ONE_MESSAGE + recordBytes)) {
+                    return current;
+                }
+            }
+        }
+
+        private void unseal() {
+            long current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current & ~SEALED_BIT));
+        }
+
+        /**
+         * Called by a sender once its record was written.
+         */
+        private void appended(int count, int position, long millis) {
+            if (count % INDEX_INTERVAL == 0) {
+                index.set(count / INDEX_INTERVAL, position + 1);
+            }
+            if (millis > lastMillis) {
+                lastMillis = millis;
+            }
+            written.incrementAndGet();
+        }
+
+        private int count() {
+            return countOf(state.get());
+        }
+
+        private int size() {
+            return positionOf(state.get());
+        }
+
+        private boolean isComplete() {
+            return written.get() == count();
+        }
+
+        /**
+         * @return the position of the given indexed message, once its sender wrote it.
+         */
+        private int indexedPosition(int slot) {
+            int position;
+            while ((position = index.get(slot)) == 0) {
+                Thread.yield();
+            }
+            return position - 1;
+        }
+
+        /**
+         * @return the length of the record at the given position, once its sender wrote it.
+         */
+        private int lengthAt(ByteBuffer records, int position) {
+            int length;
+            while ((length = records.getInt(position)) == 0) {
+                //reserved by a sender that is still writing it, reading the counter orders the retry after its write.
+                written.get();
+                Thread.yield();
+            }
+            return length;
+        }
+
+        private static int countOf(long state) {
+            return (int) ((state & ~SEALED_BIT) >>> 32);
+        }
+
+        private static int positionOf(long state) {
+            return (int) state;
+        }
+    }
+}
@@ -8,110 +8,390 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    /**
+     * The maximal number of queued buffers that are handed to a single gathering write.
+     */
+    private static final int MAX_WRITE_BATCH = 64;
 
     private final BidiMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundFrame> writeQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Reusable array of the buffers of the current gathering write, only used by the selector thread.
+     */
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SubReactor<T> reactor;
+    private final BufferPool buffers;
+    private final ReceiveSizePredictor receiveSize;
+    /**
+     * The number of bytes queued for the client and not written yet.
+     */
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    /**
+     * Once the queued bytes pass the high watermark reading from the client stops, and it resumes only after the
+     * queued bytes fall back to the low watermark.
+     */
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private volatile boolean readPaused = false;
+    private final AtomicBoolean trimScheduled = new AtomicBoolean(false);
+    /**
+     * Whether an interest in OP_WRITE was already requested since the last time the write queue was flushed, only the
+     * first send after a flush has to ask the selector for it.
+     */
+    private final AtomicBoolean writeInterestPending = new AtomicBoolean(false);
+    /**
+     * The protocol tasks of this connection that wait for the ActorThreadPool.
+     */
+    private final ActorMailbox mailbox = new ActorMailbox();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    /**
+     * When the client was last read from and last written to, only used by the selector thread.
+     */
+    private long lastReadNanos;
+    private long lastWriteNanos;
+    private IdleTimeout idleTimeout;
 
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             BidiMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SubReactor<T> reactor,
+            int lowWatermark,
+            int highWatermark,
+            SlowConsumerPolicy slowConsumerPolicy) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
+        this.buffers = reactor.getBufferPool();
+        this.receiveSize = new ReceiveSizePredictor(buffers);
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.slowConsumerPolicy = slowConsumerPolicy;
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    /**
+     * Encodes the given message into the smallest pooled buffer it fits in, falling back to a heap buffer for frames
+     * that do not fit in the largest class of the pool.
+     * Most messages fit in the smallest class and are encoded straight into it. A larger message is encoded once more,
+     * into an array whose length picks its class, rather than once per class it does not fit in.
+     *
+     * @param msg T object to encode.
+     * @return ByteBuffer ready to be written to the channel.
+     */
+    private ByteBuffer encode(T msg) {
+        ByteBuffer buf = buffers.leaseClass(0);
+        if (encdec.encodeTo(msg, buf)) {
+            buf.flip();
+            return buf;
         }
-
-        buff.clear();
-        return buff;
-    }
-
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+        buffers.release(buf);
+        byte[] encoded = encdec.encode(msg);
+        int sizeClass = buffers.classOf(encoded.length);
+        if (encoded.length > buffers.getClassSize(sizeClass)) {
+            return ByteBuffer.wrap(encoded);
+        }
+        buf = buffers.leaseClass(sizeClass);
+        buf.put(encoded);
+        buf.flip();
+        return buf;
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = buffers.leaseClass(receiveSize.nextSizeClass());
 
-        boolean success = false;
+        int read = -1;
         try {
-            success = chan.read(buf) != -1;
+            read = chan.read(buf);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
-        if (success) {
+        if (read != -1) {
+            lastReadNanos = System.nanoTime();
+            receiveSize.record(read);
             buf.flip();
+            final ByteBuffer chunk = shrink(buf);
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
-                    }
+                    encdec.decode(chunk, protocol::process);
                 } finally {
-                    releaseBuffer(buf);
+                    buffers.release(chunk);
                 }
             };
         } else {
-            releaseBuffer(buf);
+            buffers.release(buf);
             close();
             return null;
         }
+    }
+
+    /**
+     * Moves a short read into a buffer of a smaller class, so the read buffer goes back to the pool right away instead of
+     * waiting for the worker to decode a few bytes out of it. Covers the reads the size prediction did not see coming.
+     *
+     * @param buf ByteBuffer that holds the read bytes, flipped.
+     * @return ByteBuffer holding the same bytes, flipped, either the given one or a smaller one.
+     */
+    private ByteBuffer shrink(ByteBuffer buf) {
+        int sizeClass = buffers.classOf(buf.remaining());
+        if (buffers.getClassSize(sizeClass) >= buf.capacity()) {
+            return buf;
+        }
+        ByteBuffer smaller = buffers.leaseClass(sizeClass);
+        smaller.put(buf).flip();
+        buffers.release(buf);
+        return smaller;
 
     }
 
+    /**
+     * Closes the connection. Reading stops right away, but the channel is closed only after the protocol ran the tasks
+     * that are already queued and cleaned up, so the client can not reconnect into a session that was not closed yet.
+     */
     public void close() {
+        if (closed.compareAndSet(false, true)) {
+            reactor.connectionClosed(this, () -> {
+                try {
+                    protocol.connectionClosed();
+                } finally {
+                    closeChannel();
+                }
+            });
+        }
+    }
+
+    private void closeChannel() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        //nothing is written from now on, on the selector thread so it does not race with a write.
+        reactor.execute(this::dropQueuedFrames);
+    }
+
+    /**
+     * Drops every queued frame of a closed connection, closing the file regions among them.
+     */
+    private void dropQueuedFrames() {
+        OutboundFrame frame;
+        while ((frame = writeQueue.poll()) != null) {
+            completeFrame(frame);
+        }
+    }
+
+    /**
+     * Starts the idle and keepalive timeouts of this connection. Called by the selector thread once the connection is
+     * registered.
+     *
+     * @param timer            HashedWheelTimer of the owning SubReactor.
+     * @param idleTimeoutNanos Long represents the time the client may stay silent, 0 for no limit.
+     * @param keepAliveNanos   Long represents the time without writes after which a keepalive is sent, 0 for none.
+     */
+    /*package*/ void armTimeouts(HashedWheelTimer timer, long idleTimeoutNanos, long keepAliveNanos) {
+        if (idleTimeoutNanos <= 0 && keepAliveNanos <= 0) {
+            return;
+        }
+        lastReadNanos = lastWriteNanos = System.nanoTime();
+        idleTimeout = new IdleTimeout(timer, idleTimeoutNanos, keepAliveNanos);
+        idleTimeout.reschedule();
+    }
+
+    /**
+     * Drops the timeouts of this connection and stops reading from it. Called by the selector thread once the
+     * connection is closed.
+     *
+     * @param timer HashedWheelTimer of the owning SubReactor.
+     */
+    /*package*/ void detach(HashedWheelTimer timer) {
+        if (idleTimeout != null) {
+            timer.cancel(idleTimeout);
+        }
+        reactor.updateInterestedOps(chan, this::interestOps);
     }
 
     public boolean isClosed() {
-        return !chan.isOpen();
+        return closed.get() || !chan.isOpen();
     }
 
     public void continueWrite() {
         while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
+            FileRegion region = writeQueue.peek().region;
+            if (region != null) {
+                try {
+                    if (region.transferTo(chan) > 0) {
+                        lastWriteNanos = System.nanoTime();
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    close();
                     return;
-                } else {
-                    writeQueue.remove();
                 }
+                if (region.remaining() > 0) {
+                    //the socket buffer is full.
+                    break;
+                }
+                completeFrame(writeQueue.remove());
+                continue;
+            }
+            int batchSize = fillWriteBatch();
+            int completed;
+            try {
+                if (chan.write(writeBatch, 0, batchSize) > 0) {
+                    lastWriteNanos = System.nanoTime();
+                }
+                completed = removeCompletedWrites(batchSize);
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
+            } finally {
+                Arrays.fill(writeBatch, 0, batchSize, null);
+            }
+            if (completed < batchSize) {
+                //the socket buffer is full - the rest of the batch waits for the next OP_WRITE.
+                break;
             }
         }
 
+        if (writeQueue.isEmpty() && protocol.shouldTerminate()) {
+            close();
+        } else {
+            checkResumeReading();
+            reactor.updateInterestedOps(chan, this::interestOps);
+        }
+    }
+
+    /**
+     * Drops the oldest droppable frames that were not started yet, until the queue is back under the high watermark.
+     * Runs on the selector thread, so it never races with a gathering write.
+     */
+    private void dropOldestFrames() {
+        trimScheduled.set(false);
+        Iterator<OutboundFrame> pending = writeQueue.iterator();
+        while (queuedBytes.get() > highWatermark && pending.hasNext()) {
+            OutboundFrame frame = pending.next();
+            if (frame.droppable && !frame.isStarted()) {
+                pending.remove();
+                completeFrame(frame);
+            }
+        }
+        if (checkResumeReading()) {
+            reactor.updateInterestedOps(chan, this::interestOps);
+        }
+    }
+
+    /**
+     * Resumes reading from the client if it was paused and the queued bytes fell back to the low watermark.
+     *
+     * @return true if reading was resumed.
+     */
+    private boolean checkResumeReading() {
+        if (readPaused && queuedBytes.get() <= lowWatermark) {
+            readPaused = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Computes the selection operations this connection currently waits for. Only called on the selector thread while
+     * the operations are applied, which is also the only place the pending write interest is released: once it is
+     * cleared, the next send has to ask for OP_WRITE again.
+     *
+     * @return the selection operations this connection currently waits for.
+     */
+    /*package*/ int interestOps() {
+        int ops = readPaused || closed.get() ? 0 : SelectionKey.OP_READ;
         if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            writeInterestPending.set(false);
+            if (writeQueue.isEmpty()) {
+                return ops;
+            }
+            //a frame was sent before the flag was released and its sender relied on the pending interest.
+            writeInterestPending.set(true);
         }
+        return ops | SelectionKey.OP_WRITE;
+    }
+
+    /**
+     * Accounts for a frame that left the write queue, and returns its buffer to the pool.
+     *
+     * @param frame OutboundFrame that was written or dropped.
+     */
+    private void completeFrame(OutboundFrame frame) {
+        queuedBytes.addAndGet(-frame.size);
+        if (frame.region != null) {
+            frame.region.close();
+        } else if (frame.shared != null) {
+            frame.shared.release();
+        } else {
+            //the heap frames, too large for the pool, are ignored by it.
+            buffers.release(frame.buffer);
+        }
+    }
+
+    /*package*/ ActorMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Gauge of the outbound queue of this connection.
+     *
+     * @return the number of bytes queued for the client and not written yet.
+     */
+    @Override
+    public int getOutboundQueueBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Copies the head of the write queue into the batch array, up to the first file region. The first buffer may be
+     * partially written already, its position marks how much of it was sent.
+     *
+     * @return Integer represents the number of buffers in the batch.
+     */
+    private int fillWriteBatch() {
+        int batchSize = 0;
+        Iterator<OutboundFrame> pending = writeQueue.iterator();
+        while (batchSize < MAX_WRITE_BATCH && pending.hasNext()) {
+            OutboundFrame frame = pending.next();
+            if (frame.region != null) {
+                break;
+            }
+            writeBatch[batchSize] = frame.buffer;
+            batchSize++;
+        }
+        return batchSize;
+    }
+
+    /**
+     * Removes the fully written buffers of the last batch from the write queue.
+     *
+     * @param batchSize Integer represents the number of buffers in the last batch.
+     * @return Integer represents the number of buffers that were fully written.
+     */
+    private int removeCompletedWrites(int batchSize) {
+        int completed = 0;
+        while (completed < batchSize && !writeBatch[completed].hasRemaining()) {
+            completeFrame(writeQueue.remove());
+            completed++;
+        }
+        return completed;
     }
 
     /**
@@ -132,9 +412,180 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     @Override
     public void send(T msg) {
         if (msg != null) {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            enqueue(msg, null, null);
+        }
+    }
+
+    /**
+     * Send the given Message to the Client that connected to this Connection Handler, already encoded.
+     *
+     * @param msg   T object to send to the client, used by the slow consumer policy, or null if the frame holds several
+     *              messages, which are never dropped or parked.
+     * @param frame ByteBuffer holding the encoded message, owned by this connection from now on.
+     */
+    @Override
+    public void sendFrame(T msg, ByteBuffer frame) {
+        enqueue(msg, frame, null);
+    }
+
+    /**
+     * Send the given Message to the Client that connected to this Connection Handler, encoded once for several clients.
+     *
+     * @param msg   T object to send to the client, used by the slow consumer policy.
+     * @param frame SharedFrame holding the encoded message, released once it was written or dropped.
+     */
+    @Override
+    public void sendShared(T msg, SharedFrame frame) {
+        enqueue(msg, null, frame);
+    }
+
+    /**
+     * Queues a message for the client, encoding it unless it is already encoded.
+     *
+     * @param msg    T object to send to the client.
+     * @param frame  ByteBuffer holding the encoded message, or null to encode it here.
+     * @param shared SharedFrame holding the encoded message instead, or null.
+     */
+    private void enqueue(T msg, ByteBuffer frame, SharedFrame shared) {
+        boolean droppable = msg != null && protocol.isDroppable(msg);
+        if (queuedBytes.get() > highWatermark) {
+            //the client does not read - its queue is already full.
+            if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+                close();
+                release(frame, shared);
+                return;
+            } else if (slowConsumerPolicy == SlowConsumerPolicy.PARK && droppable && protocol.park(msg)) {
+                release(frame, shared);
+                return;
+            }
+        }
+
+        ByteBuffer buf = shared != null ? shared.view() : frame != null ? frame : encode(msg);
+        queue(new OutboundFrame(buf, shared, null, buf.remaining(), droppable));
+    }
+
+    private void release(ByteBuffer frame, SharedFrame shared) {
+        if (shared != null) {
+            shared.release();
+        } else if (frame != null) {
+            buffers.release(frame);
+        }
+    }
+
+    /**
+     * Send the given range of a file to the Client that connected to this Connection Handler, it is written with
+     * FileChannel.transferTo straight from the file to the socket.
+     *
+     * @param region FileRegion to send, closed once it was written or dropped.
+     */
+    @Override
+    public void sendRegion(FileRegion region) {
+        if (queuedBytes.get() > highWatermark && slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+            region.close();
+            close();
+            return;
         }
+        queue(new OutboundFrame(null, null, region, (int) region.remaining(), false));
+    }
 
+    private void queue(OutboundFrame toQueue) {
+        writeQueue.add(toQueue);
+        boolean pauseReading = queuedBytes.addAndGet(toQueue.size) > highWatermark && !readPaused;
+        if (pauseReading) {
+            readPaused = true;
+            if (slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST && trimScheduled.compareAndSet(false, true)) {
+                reactor.execute(this::dropOldestFrames);
+            }
+        }
+        if (writeInterestPending.compareAndSet(false, true) || pauseReading) {
+            reactor.updateInterestedOps(chan, this::interestOps);
+        }
+        if (!chan.isOpen()) {
+            //sent after the channel was closed, the queue was dropped already.
+            reactor.execute(this::dropQueuedFrames);
+        }
+    }
+
+    /**
+     * The single timeout of the connection in the wheel of its SubReactor. Reads and writes only update the timestamps
+     * of the connection, the timeout checks them once it expires and schedules itself again for the nearest deadline,
+     * so a busy connection costs the wheel nothing per read or write.
+     */
+    private final class IdleTimeout extends HashedWheelTimer.Timeout {
+        private final HashedWheelTimer timer;
+        private final long idleTimeoutNanos;
+        private final long keepAliveNanos;
+
+        private IdleTimeout(HashedWheelTimer timer, long idleTimeoutNanos, long keepAliveNanos) {
+            this.timer = timer;
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.keepAliveNanos = keepAliveNanos;
+        }
+
+        @Override
+        void expire(long now) {
+            if (isClosed()) {
+                return;
+            }
+            if (idleTimeoutNanos > 0 && now - (lastReadNanos + idleTimeoutNanos) >= 0) {
+                close();
+                return;
+            }
+            if (keepAliveNanos > 0 && now - (lastWriteNanos + keepAliveNanos) >= 0) {
+                T keepAlive = protocol.keepAliveMessage();
+                if (keepAlive != null) {
+                    send(keepAlive);
+                }
+                //counted as a write even if it is still queued, so a client that does not read gets one per interval.
+                lastWriteNanos = now;
+            }
+            reschedule();
+        }
+
+        private void reschedule() {
+            long deadline;
+            if (idleTimeoutNanos <= 0) {
+                deadline = lastWriteNanos + keepAliveNanos;
+            } else if (keepAliveNanos <= 0) {
+                deadline = lastReadNanos + idleTimeoutNanos;
+            } else {
+                long idleDeadline = lastReadNanos + idleTimeoutNanos;
+                long keepAliveDeadline = lastWriteNanos + keepAliveNanos;
+                deadline = idleDeadline - keepAliveDeadline < 0 ? idleDeadline : keepAliveDeadline;
+            }
+            timer.schedule(this, deadline);
+        }
+    }
+
+    /**
+     * A frame in the write queue of the connection.
+     */
+    private static final class OutboundFrame {
+        private final ByteBuffer buffer;
+        /**
+         * The frame the buffer is a view of, if it is shared with other connections.
+         */
+        private final SharedFrame shared;
+        /**
+         * The file region to send instead of the buffer, if it is not null.
+         */
+        private final FileRegion region;
+        private final int size;
+        /**
+         * Whether the slow consumer policy may drop this frame before it is written.
+         */
+        private final boolean droppable;
+
+        private OutboundFrame(ByteBuffer buffer, SharedFrame shared, FileRegion region, int size, boolean droppable) {
+            this.buffer = buffer;
+            this.shared = shared;
+            this.region = region;
+            this.size = size;
+            this.droppable = droppable;
+        }
+
+        private boolean isStarted() {
+            return (region != null ? region.remaining() : buffer.remaining()) < size;
+        }
     }
 }
@@ -0,0 +1,433 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * The messages that wait for a user until the next login, oldest first.
+ * Every message is kept as the frame that is sent to the client, numbered by the order it arrived in. The oldest few
+ * are kept on the heap while the heads of all the mailboxes fit in their budget, and the rest are spilled to the files
+ * of the user, so the heap does not grow with the number of users who do not come back. The spilled frames are kept
+ * back to back in a data file, so a run of them is sent to the client straight from the file, and their numbers,
+ * arrival times and lengths in an index file next to it.
+ * A mailbox holds at most a fixed number of messages and drops its oldest beyond it, and a message that waited longer
+ * than the time to live is dropped the next time the mailbox is used.
+ */
+public final class OfflineMailbox {
+
+    /**
+     * The number of messages a mailbox keeps on the heap at most.
+     */
+    private static final int HEAD_ENTRIES = 8;
+    /**
+     * An index record: the sequence number, the arrival time and the length of the frame.
+     */
+    private static final int INDEX_RECORD = 8 + 8 + 4;
+    /**
+     * The number of bytes of removed frames at the start of the data file from which the files are compacted, once
+     * they are also more than the frames that are left.
+     */
+    private static final long COMPACT_BYTES = 1 << 20;
+    /**
+     * The number of bytes of the index that are read at once.
+     */
+    private static final int READ_WINDOW = 64 << 10;
+
+    private final OfflineMailboxes owner;
+    private final int userId;
+    private final ArrayDeque<Entry> head = new ArrayDeque<>(HEAD_ENTRIES);
+    /**
+     * The number of the last message that ever arrived, messages with a lower number are not added again.
+     */
+    private long lastSeq;
+    private int spilledCount;
+    /**
+     * The positions of the oldest spilled message in the index and data files, and their ends.
+     */
+    private long indexRead;
+    private long indexWrite;
+    private long dataRead;
+    private long dataWrite;
+
+    /*package*/ OfflineMailbox(OfflineMailboxes owner, int userId) {
+        this.owner = owner;
+        this.userId = userId;
+    }
+
+    /**
+     * Adds a message that arrived now.
+     *
+     * @param toSave Notification to add.
+     * @return the entry of the message.
+     */
+    public synchronized Entry add(Notification toSave) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(++lastSeq, now, toSave.convertMessageToBytes());
+        store(entry);
+        prune(now);
+        return entry;
+    }
+
+    /**
+     * Adds a message that was added before, unless it is here already.
+     *
+     * @param seq    Long represents the number of the message.
+     * @param millis Long represents the time the message arrived at.
+     * @param frame  Array of bytes of the message as it is sent to the client.
+     */
+    public synchronized void restore(long seq, long millis, byte[] frame) {
+        if (seq <= lastSeq) {
+            return;
+        }
+        lastSeq = seq;
+        store(new Entry(seq, millis, frame));
+        prune(System.currentTimeMillis());
+    }
+
+    /**
+     * @param seq Long represents the number of the last message that arrived, when it was removed already.
+     */
+    public synchronized void restoreLastSeq(long seq) {
+        lastSeq = Math.max(lastSeq, seq);
+    }
+
+    /**
+     * @return the number of the last message that arrived.
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return the number of messages that are waiting.
+     */
+    public synchronized int size() {
+        return head.size() + spilledCount;
+    }
+
+    /**
+     * Returns the oldest messages without removing them, dropping the expired ones first.
+     *
+     * @param maxBytes Long represents the number of bytes the frames of the returned messages may take, at least one
+     *                 message is returned if there is one.
+     * @param upTo     Long represents the number of the newest message to return.
+     * @param into     List to add the messages to.
+     */
+    public synchronized void peek(long maxBytes, long upTo, List<Entry> into) {
+        prune(System.currentTimeMillis());
+        long taken = 0;
+        for (Entry entry : head) {
+            if (entry.seq > upTo || (taken > 0 && taken + entry.frame.length > maxBytes)) {
+                return;
+            }
+            into.add(entry);
+            taken += entry.frame.length;
+        }
+        long indexPosition = indexRead;
+        long dataPosition = dataRead;
+        while (indexPosition < indexWrite) {
+            ByteBuffer index = readIndex(indexPosition);
+            int count = 0;
+            int bytes = 0;
+            while (index.remaining() >= INDEX_RECORD) {
+                int length = index.getInt(index.position() + 16);
+                if (index.getLong(index.position()) > upTo || (taken > 0 && taken + length > maxBytes)) {
+                    break;
+                }
+                index.position(index.position() + INDEX_RECORD);
+                count++;
+                bytes += length;
+                taken += length;
+            }
+            if (count == 0) {
+                return;
+            }
+            ByteBuffer data = read(dataPosition, bytes, false);
+            for (int i = 0; i < count; i++) {
+                byte[] frame = new byte[index.getInt(i * INDEX_RECORD + 16)];
+                data.get(frame);
+                into.add(new Entry(index.getLong(i * INDEX_RECORD), index.getLong(i * INDEX_RECORD + 8), frame));
+            }
+            indexPosition += (long) count * INDEX_RECORD;
+            dataPosition += bytes;
+            if (index.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest messages for sending, dropping the expired ones first. The messages stay in the mailbox until
+     * they are removed.
+     *
+     * @param maxBytes Long represents the number of bytes the chunk may take, it holds at least one message if there
+     *                 is one.
+     * @return the frames of the oldest messages, from the heap or straight from the data file, or null if no message
+     * is waiting.
+     */
+    public synchronized Chunk nextChunk(long maxBytes) {
+        prune(System.currentTimeMillis());
+        if (!head.isEmpty()) {
+            //the head holds the oldest messages, they are copied into a single frame.
+            int bytes = 0;
+            int count = 0;
+            for (Entry entry : head) {
+                if (count > 0 && bytes + entry.frame.length > maxBytes) {
+                    break;
+                }
+                bytes += entry.frame.length;
+                count++;
+            }
+            ByteBuffer frames = ByteBuffer.allocate(bytes);
+            long chunkLastSeq = 0;
+            for (Entry entry : head) {
+                if (count-- == 0) {
+                    break;
+                }
+                frames.put(entry.frame);
+                chunkLastSeq = entry.seq;
+            }
+            frames.flip();
+            return new Chunk(frames, null, chunkLastSeq);
+        }
+        if (spilledCount == 0) {
+            return null;
+        }
+        ByteBuffer index = readIndex(indexRead);
+        long bytes = 0;
+        long chunkLastSeq = 0;
+        while (index.remaining() >= INDEX_RECORD) {
+            int length = index.getInt(index.position() + 16);
+            if (bytes > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            chunkLastSeq = index.getLong(index.position());
+            bytes += length;
+            index.position(index.position() + INDEX_RECORD);
+        }
+        try {
+            //opened while the mailbox is locked, so the file can not be compacted or deleted under it before.
+            return new Chunk(null, owner.openRegion(userId, dataRead, bytes), chunkLastSeq);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Removes every message up to the given number, once they were sent.
+     *
+     * @param seq Long represents the number of the newest message to remove.
+     */
+    public synchronized void removeUpTo(long seq) {
+        while (size() > 0 && oldestIndex(0) <= seq) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Copies every waiting message, for a snapshot.
+     *
+     * @param into List to add the messages to.
+     * @return the number of the last message that arrived.
+     */
+    public synchronized long copyTo(List<Entry> into) {
+        peek(Long.MAX_VALUE, Long.MAX_VALUE, into);
+        return lastSeq;
+    }
+
+    private void store(Entry entry) {
+        int bytes = entry.frame.length;
+        //once a message was spilled every newer one is spilled too, so the files stay in order.
+        if (spilledCount == 0 && head.size() < HEAD_ENTRIES && owner.reserveHead(bytes)) {
+            head.addLast(entry);
+        } else {
+            spill(entry);
+        }
+        while (size() > owner.getMaxMessages()) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Drops the oldest messages while they are expired.
+     */
+    private void prune(long now) {
+        long expiredBefore = owner.expiredBefore(now);
+        while (size() > 0 && oldestIndex(8) < expiredBefore) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * @param field Integer represents the offset of a long field in the index record, 0 for the number of the oldest
+     *              message and 8 for its arrival time.
+     */
+    private long oldestIndex(int field) {
+        if (!head.isEmpty()) {
+            return field == 0 ? head.peekFirst().seq : head.peekFirst().millis;
+        }
+        return read(indexRead, INDEX_RECORD, true).getLong(field);
+    }
+
+    private void removeOldest() {
+        if (!head.isEmpty()) {
+            Entry removed = head.pollFirst();
+            owner.releaseHead(removed.frame.length);
+            return;
+        }
+        int length = read(indexRead, INDEX_RECORD, true).getInt(16);
+        indexRead += INDEX_RECORD;
+        dataRead += length;
+        spilledCount--;
+        if (spilledCount == 0) {
+            owner.deleteFiles(userId);
+            indexRead = indexWrite = dataRead = dataWrite = 0;
+        } else if (dataRead > COMPACT_BYTES && dataRead > dataWrite - dataRead) {
+            try {
+                owner.compact(userId, indexRead, dataRead);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            indexWrite -= indexRead;
+            dataWrite -= dataRead;
+            indexRead = 0;
+            dataRead = 0;
+        }
+    }
+
+    private void spill(Entry entry) {
+        final ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD);
+        record.putLong(entry.seq).putLong(entry.millis).putInt(entry.frame.length);
+        record.flip();
+        final ByteBuffer frame = ByteBuffer.wrap(entry.frame);
+        final long indexAt = indexWrite;
+        final long dataAt = dataWrite;
+        io(files -> {
+            writeFully(files.getData(), frame, dataAt);
+            writeFully(files.getIndex(), record, indexAt);
+            return null;
+        });
+        indexWrite += INDEX_RECORD;
+        dataWrite += entry.frame.length;
+        spilledCount++;
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += file.write(buffer, at);
+        }
+    }
+
+    /**
+     * Reads index records from the given position on, as many as fit in the read window.
+     */
+    private ByteBuffer readIndex(long position) {
+        return read(position, (int) Math.min(indexWrite - position, READ_WINDOW / INDEX_RECORD * INDEX_RECORD), true);
+    }
+
+    private ByteBuffer read(final long position, int length, final boolean index) {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        io(files -> {
+            long at = position;
+            while (buffer.hasRemaining()) {
+                int read = (index ? files.getIndex() : files.getData()).read(buffer, at);
+                if (read < 0) {
+                    throw new IOException("the spill files of user " + userId + " ended unexpectedly");
+                }
+                at += read;
+            }
+            return null;
+        });
+        buffer.flip();
+        return buffer;
+    }
+
+    private void io(OfflineMailboxes.SpillAction<Void> action) {
+        try {
+            owner.withFiles(userId, action);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * A waiting message.
+     */
+    public static final class Entry {
+        private final long seq;
+        private final long millis;
+        private final byte[] frame;
+
+        private Entry(long seq, long millis, byte[] frame) {
+            this.seq = seq;
+            this.millis = millis;
+            this.frame = frame;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return the message as it is sent to the client, must not be changed.
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+    }
+
+    /**
+     * The frames of a run of the oldest messages, either copied from the heap or as a region of the data file.
+     */
+    public static final class Chunk {
+        private final ByteBuffer frames;
+        private final FileRegion region;
+        private final long lastSeq;
+
+        private Chunk(ByteBuffer frames, FileRegion region, long lastSeq) {
+            this.frames = frames;
+            this.region = region;
+            this.lastSeq = lastSeq;
+        }
+
+        /**
+         * @return the frames, or null if they are sent from the data file.
+         */
+        public ByteBuffer getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the region of the data file that holds the frames, or null if they were copied from the heap.
+         */
+        public FileRegion getRegion() {
+            return region;
+        }
+
+        /**
+         * @return the number of bytes of the frames.
+         */
+        public long size() {
+            return frames != null ? frames.remaining() : region.remaining();
+        }
+
+        /**
+         * @return the number of the newest message of the chunk.
+         */
+        public long getLastSeq() {
+            return lastSeq;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the offline mailboxes of the users and holds what they share: the limits, the directory of their spill
+ * files, the budget of the heap their in-memory heads may take, and a small cache of open spill files. Every user has
+ * an index file and a data file.
+ * The spill files are not what makes the waiting messages survive a restart - the UserStore logs them - so they are
+ * deleted when the server starts, and the mailboxes are filled again while the users are recovered.
+ */
+public final class OfflineMailboxes {
+
+    public static final int DEFAULT_MAX_MESSAGES = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_HEAD_BUDGET_BYTES = 32L << 20;
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int OPEN_FILES = 256;
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long ttlMillis;
+    private final long headBudgetBytes;
+    private final AtomicLong headBytes = new AtomicLong(0);
+    /**
+     * The spill files that are open, least recently used first. Only the map is guarded by its lock: the files of a
+     * user are read and written by the mailbox of the user while it holds its own lock, so the mailboxes of different
+     * users do their I/O at the same time, and a file that is closed while it is in use is closed by its mailbox once it
+     * is done with it.
+     */
+    private final Map<Integer, SpillFiles> openFiles;
+
+    /**
+     * @param directory       Path of the directory of the spill files, emptied if it exists.
+     * @param maxMessages     Integer represents the number of messages a mailbox holds before it drops its oldest.
+     * @param ttlMillis       Long represents how long a message waits before it is dropped, 0 to keep it forever.
+     * @param headBudgetBytes Long represents the number of bytes all the in-memory heads may take together.
+     */
+    public OfflineMailboxes(Path directory, int maxMessages, long ttlMillis, long headBudgetBytes) throws IOException {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("a mailbox must hold at least one message");
+        }
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.ttlMillis = ttlMillis;
+        this.headBudgetBytes = headBudgetBytes;
+        this.openFiles = new LinkedHashMap<Integer, SpillFiles>(16, 0.75f, true);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path stale : stream) {
+                Files.delete(stale);
+            }
+        }
+    }
+
+    /**
+     * @param userId Integer represents the unique number of the user the mailbox belongs to.
+     * @return a new empty mailbox.
+     */
+    public OfflineMailbox create(int userId) {
+        return new OfflineMailbox(this, userId);
+    }
+
+    /*package*/ int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * @param now Long represents the current time in milliseconds.
+     * @return the time in milliseconds before which a message expired, or Long.MIN_VALUE if messages never expire.
+     */
+    /*package*/ long expiredBefore(long now) {
+        return ttlMillis > 0 ? now - ttlMillis : Long.MIN_VALUE;
+    }
+
+    /**
+     * Takes the given number of bytes from the budget of the heads.
+     *
+     * @return true if they fit in the budget.
+     */
+    /*package*/ boolean reserveHead(int bytes) {
+        long current;
+        do {
+            current = headBytes.get();
+            if (current + bytes > headBudgetBytes) {
+                return false;
+            }
+        } while (!headBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /*package*/ void releaseHead(int bytes) {
+        headBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @return the number of bytes the in-memory heads of all the mailboxes take.
+     */
+    public long getHeadBytes() {
+        return headBytes.get();
+    }
+
+    /**
+     * Runs the given action on the spill files of a user, opening them if needed. Called by the mailbox of the user
+     * while it holds its lock, so a single thread uses the files of a user at a time.
+     */
+    /*package*/ <R> R withFiles(int userId, SpillAction<R> action) throws IOException {
+        SpillFiles files;
+        synchronized (openFiles) {
+            //taken while in the map, so they are not closed under the action once another user evicts them.
+            files = openFiles.get(userId);
+            if (files != null) {
+                files.acquire();
+            }
+        }
+        if (files == null) {
+            files = new SpillFiles(open(pathOf(userId, INDEX_SUFFIX)), open(pathOf(userId, DATA_SUFFIX)));
+            SpillFiles evicted = null;
+            synchronized (openFiles) {
+                files.acquire();
+                openFiles.put(userId, files);
+                if (openFiles.size() > OPEN_FILES) {
+                    Iterator<SpillFiles> eldest = openFiles.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+            }
+            if (evicted != null) {
+                evicted.evict();
+            }
+        }
+        try {
+            return action.apply(files);
+        } finally {
+            files.release();
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens a range of the data file of a user for sending. The region has a channel of its own, so it stays readable
+     * after the file is compacted or deleted.
+     *
+     * @param userId   Integer represents the unique number of the user.
+     * @param position Long represents the position of the range in the data file.
+     * @param count    Long represents the number of bytes of the range.
+     */
+    /*package*/ FileRegion openRegion(int userId, long position, long count) throws IOException {
+        return new FileRegion(FileChannel.open(pathOf(userId, DATA_SUFFIX), StandardOpenOption.READ), position, count);
+    }
+
+    /**
+     * Drops the start of the spill files of a user. The files are copied and replaced rather than changed in place,
+     * since the regions that are being sent from the data file still read the old one.
+     *
+     * @param userId    Integer represents the unique number of the user.
+     * @param indexFrom Long represents the position in the index file the new index file starts at.
+     * @param dataFrom  Long represents the position in the data file the new data file starts at.
+     */
+    /*package*/ void compact(int userId, final long indexFrom, final long dataFrom) throws IOException {
+        withFiles(userId, files -> {
+            copyTail(files.index, indexFrom, pathOf(userId, INDEX_SUFFIX));
+            copyTail(files.data, dataFrom, pathOf(userId, DATA_SUFFIX));
+            return null;
+        });
+        closeFiles(userId);
+    }
+
+    private static void copyTail(FileChannel from, long position, Path to) throws IOException {
+        Path temp = to.resolveSibling(to.getFileName() + TEMP_SUFFIX);
+        try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long end = from.size();
+            for (long at = position; at < end; ) {
+                at += from.transferTo(at, end - at, copy);
+            }
+        }
+        Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the spill files of a user, once they hold no message.
+     */
+    /*package*/ void deleteFiles(int userId) {
+        try {
+            closeFiles(userId);
+            Files.deleteIfExists(pathOf(userId, INDEX_SUFFIX));
+            Files.deleteIfExists(pathOf(userId, DATA_SUFFIX));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void closeFiles(int userId) throws IOException {
+        SpillFiles files;
+        synchronized (openFiles) {
+            files = openFiles.remove(userId);
+        }
+        if (files != null) {
+            files.evict();
+        }
+    }
+
+    private Path pathOf(int userId, String suffix) {
+        return directory.resolve(userId + suffix);
+    }
+
+    /**
+     * The open spill files of a user.
+     */
+    /*package*/ static final class SpillFiles {
+        private final FileChannel index;
+        private final FileChannel data;
+        /**
+         * Whether the files are in use by the mailbox, and whether they were dropped from the open files meanwhile.
+         */
+        private boolean inUse;
+        private boolean evicted;
+
+        private SpillFiles(FileChannel index, FileChannel data) {
+            this.index = index;
+            this.data = data;
+        }
+
+        /*package*/ FileChannel getIndex() {
+            return index;
+        }
+
+        /*package*/ FileChannel getData() {
+            return data;
+        }
+
+        private synchronized void acquire() {
+            inUse = true;
+        }
+
+        private void release() throws IOException {
+            synchronized (this) {
+                inUse = false;
+                if (!evicted) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        /**
+         * Closes the files now if they are not in use, or once the mailbox is done with them.
+         */
+        private void evict() throws IOException {
+            synchronized (this) {
+                evicted = true;
+                if (inUse) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        private void close() throws IOException {
+            try {
+                index.close();
+            } finally {
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * Something done with the open spill files of a user.
+     */
+    /*package*/ interface SpillAction<R> {
+        R apply(SpillFiles files) throws IOException;
+    }
+}
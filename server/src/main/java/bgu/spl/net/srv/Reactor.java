@@ -7,68 +7,108 @@ import bgu.spl.net.api.bidi.ConnectionsImpl;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    private static final int DEFAULT_LOW_WATERMARK = 1 << 18; //256k
+    private static final int DEFAULT_HIGH_WATERMARK = 1 << 20; //1m
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
     private final int port;
     private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
-    private Selector selector;
+    private final BufferPool buffers;
+    /**
+     * The selector loops that own the accepted connections, the acceptor hands new connections to them in a round robin.
+     */
+    private final SubReactor<T>[] subReactors;
+    private int nextSubReactor;
+    /**
+     * Limits of the outbound queue of each connection, see NonBlockingConnectionHandler.
+     */
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.PARK;
     /**
-     * AtomicInteger to generate a unique connectionID to each new Client.
+     * Disabled by default, see setIdleTimeout and setKeepAliveInterval.
      */
-    private AtomicInteger connectionIdGenerator;
+    private long idleTimeoutNanos = 0;
+    private long keepAliveNanos = 0;
+    /**
+     * Whether every SubReactor listens on its own channel, see setReusePort.
+     */
+    private boolean reusePort = false;
+    private volatile Selector selector;
     /**
      * Connections Object to hold and map all the current active ConnectionHandlers in the server.
      */
     private ConnectionsImpl<T> connections;
-    private Thread selectorThread;
 
     public Reactor(
             int numThreads,
             int port,
             Supplier<BidiMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 1, port, protocolFactory, readerFactory);
+    }
+
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.buffers = new BufferPool();
+        this.subReactors = newSubReactors(Math.max(1, numSelectors));
+        this.nextSubReactor = 0;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
-        this.connectionIdGenerator = new AtomicInteger(1);
-        this.connections = new ConnectionsImpl<>();
+        this.connections = new ConnectionsImpl<>(readerFactory.get(), buffers);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> SubReactor<T>[] newSubReactors(int length) {
+        return new SubReactor[length];
     }
 
     @Override
     public void serve() {
-        selectorThread = Thread.currentThread();
         try (Selector selector = Selector.open();
              ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
             this.selector = selector; //just to be able to close
 
-            serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("Server started (Reactor)");
+            for (int i = 0; i < subReactors.length; i++) {
+                subReactors[i] = new SubReactor<>(i, pool, buffers, idleTimeoutNanos, keepAliveNanos);
+                subReactors[i].start();
+            }
+
+            if (reusePort && ReusePort.isSupported(serverSock)) {
+                listenOnEverySubReactor();
+                System.out.println("Server started (Reactor, " + subReactors.length + " selectors, SO_REUSEPORT)");
+            } else {
+                if (reusePort) {
+                    System.out.println("SO_REUSEPORT is not supported, accepting on a single listener");
+                }
+                serverSock.bind(new InetSocketAddress(port));
+                serverSock.configureBlocking(false);
+                serverSock.register(selector, SelectionKey.OP_ACCEPT);
+                System.out.println("Server started (Reactor, " + subReactors.length + " selectors)");
+            }
 
             while (!Thread.currentThread().isInterrupted()) {
 
                 selector.select();
-                runSelectionThreadTasks();
 
                 for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
+                    if (key.isValid() && key.isAcceptable()) {
+                        handleAccept(serverSock);
                     }
                 }
 
@@ -83,63 +123,196 @@ public class Reactor<T> implements Server<T> {
             ex.printStackTrace();
         }
 
+        closeSubReactors();
+        System.out.println("selector wakeups: " + getWakeupCount() + ", suppressed: " + getSuppressedWakeupCount()
+                + ", selector tasks: " + getSelectorTaskCount());
+        System.out.println(buffers);
+        try {
+            //the requests in progress finish before serve returns, so what they use may be closed right after.
+            if (!pool.shutdownAndWait(SHUTDOWN_TIMEOUT_MILLIS)) {
+                pool.shutdown();
+            }
+        } catch (InterruptedException ex) {
+            pool.shutdown();
+            Thread.currentThread().interrupt();
+        }
         System.out.println("server closed!!!");
-        pool.shutdown();
-    }
-
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                if (key.isValid())
-                    key.interestOps(ops);
-            });
-            selector.wakeup();
+    }
+
+    /**
+     * Opens a listening channel on the port for every SubReactor, all of them with SO_REUSEPORT so the kernel balances
+     * the incoming connections between them, and each SubReactor accepts its own connections.
+     */
+    private void listenOnEverySubReactor() throws IOException {
+        for (SubReactor<T> subReactor : subReactors) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            try {
+                ReusePort.enable(listener);
+                listener.bind(new InetSocketAddress(port));
+                listener.configureBlocking(false);
+            } catch (IOException | RuntimeException ex) {
+                listener.close();
+                throw ex;
+            }
+            subReactor.listen(listener, clientChan -> acceptConnection(clientChan, subReactor));
         }
     }
 
+    /**
+     * Accepts every pending connection in the backlog and hands each one to the next SubReactor.
+     *
+     * @param serverChan ServerSocketChannel that has pending connections.
+     */
+    private void handleAccept(ServerSocketChannel serverChan) throws IOException {
+        SocketChannel clientChan;
+        while ((clientChan = serverChan.accept()) != null) {
+            clientChan.configureBlocking(false);
+            SubReactor<T> owner = subReactors[nextSubReactor];
+            nextSubReactor = (nextSubReactor + 1) % subReactors.length;
+            acceptConnection(clientChan, owner);
+        }
+    }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
+    /**
+     * Creates the handler of a newly accepted connection and registers it in the given SubReactor. Called by the
+     * acceptor thread, or by the SubReactors themselves when each of them listens on its own channel.
+     *
+     * @param clientChan SocketChannel of the accepted client, already in non-blocking mode.
+     * @param owner      SubReactor that owns the connection from now on.
+     */
+    private void acceptConnection(SocketChannel clientChan, SubReactor<T> owner) {
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this);
-        int currentId = this.connectionIdGenerator.getAndIncrement();
-        this.connections.addConnection(currentId, handler);
+                owner,
+                lowWatermark,
+                highWatermark,
+                slowConsumerPolicy);
+        int currentId = this.connections.addConnection(handler);
         handler.start(this.connections, currentId);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        owner.register(clientChan, handler);
+    }
+
+    /**
+     * Sets the limits of the outbound queue of every connection accepted from now on.
+     *
+     * @param lowWatermark  Integer represents the number of queued bytes under which reading from a client resumes.
+     * @param highWatermark Integer represents the number of queued bytes over which reading from a client stops and
+     *                      the slow consumer policy applies.
+     */
+    public void setOutboundWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark is greater than the high watermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets what is done with messages to clients that stopped reading, for every connection accepted from now on.
+     *
+     * @param slowConsumerPolicy SlowConsumerPolicy to apply.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+    /**
+     * Sets whether every SubReactor opens its own listening channel on the port with SO_REUSEPORT, instead of a single
+     * acceptor handing the connections to the SubReactors, so accepting a storm of reconnects is spread over all the
+     * selector threads. Falls back to a single acceptor where SO_REUSEPORT is not supported. Has to be called before
+     * the server starts serving.
+     *
+     * @param reusePort true to listen on a channel per SubReactor.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
 
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+    /**
+     * Sets the time a client may stay silent before it is disconnected and logged out, so dead peers do not keep their
+     * connection and session forever. Has to be called before the server starts serving.
+     *
+     * @param millis Long represents the idle timeout in milliseconds, 0 to never disconnect idle clients.
+     */
+    public void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative idle timeout");
         }
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
 
-        if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    /**
+     * Sets the time without writes to a client after which the keepalive message of its protocol is sent to it. Has to
+     * be called before the server starts serving.
+     *
+     * @param millis Long represents the keepalive interval in milliseconds, 0 to never send keepalives.
+     */
+    public void setKeepAliveInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative keepalive interval");
         }
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return the BufferPool the connections of this server read, encode and write with, for its statistics.
+     */
+    public BufferPool getBufferPool() {
+        return buffers;
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    /**
+     * @return the number of times a selector was woken up by other threads.
+     */
+    public long getWakeupCount() {
+        long sum = 0;
+        for (SubReactor<T> subReactor : subReactors) {
+            if (subReactor != null) sum += subReactor.getWakeupCount();
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of selector wakeups that were skipped because one was already pending.
+     */
+    public long getSuppressedWakeupCount() {
+        long sum = 0;
+        for (SubReactor<T> subReactor : subReactors) {
+            if (subReactor != null) sum += subReactor.getSuppressedWakeupCount();
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of tasks that ran on the selector threads.
+     */
+    public long getSelectorTaskCount() {
+        long sum = 0;
+        for (SubReactor<T> subReactor : subReactors) {
+            if (subReactor != null) sum += subReactor.getSelectorTaskCount();
+        }
+        return sum;
+    }
+
+    private void closeSubReactors() {
+        for (SubReactor<T> subReactor : subReactors) {
+            if (subReactor != null) {
+                try {
+                    subReactor.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (selector != null) {
+            selector.close();
+        }
     }
 
 }
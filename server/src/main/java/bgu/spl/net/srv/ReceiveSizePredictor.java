@@ -0,0 +1,55 @@
+package bgu.spl.net.srv;
+
+/**
+ * Predicts the size class of the next read of a single connection from the sizes of its previous reads.
+ * A read that fills its buffer moves the prediction one class up right away, while the prediction moves down only after
+ * two reads in a row that would have fit in the class below, so a connection that sends in bursts keeps its size.
+ * Only used by the selector thread that owns the connection.
+ */
+final class ReceiveSizePredictor {
+
+    /**
+     * The size new connections start with, enough for the short frames most clients send.
+     */
+    private static final int INITIAL_SIZE = 1 << 11; //2k
+
+    private final BufferPool buffers;
+    private int sizeClass;
+    private boolean decreaseNow = false;
+
+    /**
+     * @param buffers BufferPool whose size classes the predictions are made in.
+     */
+    /*package*/ ReceiveSizePredictor(BufferPool buffers) {
+        this.buffers = buffers;
+        this.sizeClass = buffers.classOf(INITIAL_SIZE);
+    }
+
+    /**
+     * @return the size class the next read should lease its buffer from.
+     */
+    /*package*/ int nextSizeClass() {
+        return sizeClass;
+    }
+
+    /**
+     * Updates the prediction after a read into a buffer of the predicted class.
+     *
+     * @param bytesRead Integer represents the number of bytes the read returned.
+     */
+    /*package*/ void record(int bytesRead) {
+        if (bytesRead >= buffers.getClassSize(sizeClass)) {
+            sizeClass = Math.min(sizeClass + 1, buffers.getClassCount() - 1);
+            decreaseNow = false;
+        } else if (sizeClass > 0 && bytesRead <= buffers.getClassSize(sizeClass - 1)) {
+            if (decreaseNow) {
+                sizeClass--;
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else {
+            decreaseNow = false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Looks SO_REUSEPORT up through reflection, so the server still compiles and runs on Java 8.
+ * The option exists from Java 9, and only on platforms that support it, like Linux, where several sockets may listen
+ * on the same port and the kernel balances the incoming connections between them.
+ */
+final class ReusePort {
+
+    /**
+     * StandardSocketOptions.SO_REUSEPORT, or null if this JVM does not know it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+
+    static {
+        SocketOption<Boolean> option;
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> found = (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+            option = found;
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            option = null;
+        }
+        SO_REUSEPORT = option;
+    }
+
+    private ReusePort() {
+    }
+
+    /**
+     * @param chan ServerSocketChannel to check.
+     * @return true if the given channel can share its port with other listening channels.
+     */
+    static boolean isSupported(ServerSocketChannel chan) {
+        return SO_REUSEPORT != null && chan.supportedOptions().contains(SO_REUSEPORT);
+    }
+
+    /**
+     * Lets the given channel share its port with other listening channels, has to be called before it is bound.
+     *
+     * @param chan ServerSocketChannel to configure.
+     * @throws UnsupportedOperationException if the channel does not support SO_REUSEPORT.
+     */
+    static void enable(ServerSocketChannel chan) throws IOException {
+        if (!isSupported(chan)) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+        }
+        chan.setOption(SO_REUSEPORT, true);
+    }
+}
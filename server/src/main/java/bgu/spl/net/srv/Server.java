@@ -24,8 +24,36 @@ public interface Server<T> extends Closeable {
 
         return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
             @Override
-            protected void execute(BlockingConnectionHandler<T> handler) {
-                new Thread(handler).start();
+            protected void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a thread per client pattern server that runs every client on a virtual
+     * thread. Requires running on Java 21 or later.
+     *
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        if (!VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+        }
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(Runnable task) {
+                VirtualThreads.start(task);
             }
         };
 
@@ -49,6 +77,26 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server with several selector threads
+     *
+     * @param nthreads              Number of threads available for protocol processing
+     * @param nselectors            Number of selector threads that read and write the client sockets
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nselectors, port, protocolFactory, encoderDecoderFactory);
+    }
+
     /**
      * The main loop of the server, Starts listening and handling new clients.
      */
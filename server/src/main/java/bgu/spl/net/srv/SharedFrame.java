@@ -0,0 +1,63 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message encoded once for several connections. Every connection writes a read only view of its own, and the buffer
+ * goes back to its pool once the last connection released the frame.
+ */
+public final class SharedFrame {
+
+    private final ByteBuffer buffer;
+    /**
+     * The pool the buffer was leased from, or null if it is a heap buffer.
+     */
+    private final BufferPool pool;
+    /**
+     * Starts with the reference of the one who encoded the frame, every connection it is handed to takes one more.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param buffer ByteBuffer holding the encoded message, flipped.
+     * @param pool   BufferPool the buffer was leased from, or null if it was not leased.
+     */
+    public SharedFrame(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * @return a read only view of the encoded message, with a position of its own.
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of bytes of the encoded message.
+     */
+    public int size() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Takes a reference to the frame, for a connection it is about to be handed to.
+     *
+     * @return this frame.
+     */
+    public SharedFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Gives a reference back, once the frame was written or dropped. The views must not be used afterwards.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a connection handler does with new messages once the bytes queued for its client passed the high watermark,
+ * meaning the client stopped reading.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Close the connection of the slow client.
+     */
+    DISCONNECT,
+    /**
+     * Keep the new message and drop the oldest queued messages that the protocol considers droppable, until the queue
+     * is back under the high watermark.
+     */
+    DROP_OLDEST,
+    /**
+     * Hand droppable messages back to the protocol, which parks them and delivers them again once the client read its
+     * queue.
+     */
+    PARK
+}
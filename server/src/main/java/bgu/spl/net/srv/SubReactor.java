@@ -0,0 +1,319 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * A single selector loop of the Reactor server.
+ * The acceptor of the Reactor hands every accepted channel to one SubReactor, which from then on owns the channel:
+ * it reads from it, flushes its write queue and applies every interest-ops change on its own thread.
+ */
+class SubReactor<T> implements Runnable {
+
+    private final int index;
+    private final ActorThreadPool pool;
+    private final BufferPool buffers;
+    /**
+     * Idle and keepalive timeouts of the connections owned by this SubReactor, see NonBlockingConnectionHandler.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer();
+    private final long idleTimeoutNanos;
+    private final long keepAliveNanos;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private Thread selectorThread;
+    /**
+     * The channel this SubReactor accepts connections from itself, or null if the acceptor of the Reactor hands them to
+     * it.
+     */
+    private ServerSocketChannel listener;
+    private Consumer<SocketChannel> acceptor;
+    /**
+     * Whether a wakeup of the selector is already on its way, tasks that are added meanwhile ride on it.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder suppressedWakeups = new LongAdder();
+    private final LongAdder tasksRun = new LongAdder();
+
+    /**
+     * Default Constructor.
+     *
+     * @param index            Integer represents the index of this SubReactor, used for naming its thread.
+     * @param pool             ActorThreadPool that runs the protocol tasks of the connections owned by this SubReactor.
+     * @param buffers          BufferPool the connections owned by this SubReactor read, encode and write with.
+     * @param idleTimeoutNanos Long represents the time a client may stay silent before it is disconnected, 0 to never
+     *                         disconnect.
+     * @param keepAliveNanos   Long represents the time without writes after which a keepalive is sent to a client, 0 to
+     *                         never send one.
+     * @throws IOException if the selector could not be opened.
+     */
+    /*package*/ SubReactor(int index, ActorThreadPool pool, BufferPool buffers, long idleTimeoutNanos, long keepAliveNanos)
+            throws IOException {
+        this.index = index;
+        this.pool = pool;
+        this.buffers = buffers;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.keepAliveNanos = keepAliveNanos;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the selection thread of this SubReactor.
+     */
+    /*package*/ void start() {
+        this.selectorThread = new Thread(this, "sub-reactor-" + this.index);
+        this.selectorThread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+
+                long timeout = timer.millisToNextTick(System.nanoTime());
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.select();
+                }
+                //cleared before the tasks run, so a task added after this point wakes the selector again.
+                wakeupPending.set(false);
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isAcceptable()) {
+                        handleAccept();
+                    } else if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+                timer.advance(System.nanoTime());
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers a newly accepted channel in this SubReactor. May be called from any thread.
+     *
+     * @param chan    SocketChannel of the accepted client, already in non-blocking mode.
+     * @param handler NonBlockingConnectionHandler that handles the given channel.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        Runnable registration = () -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+                //frames sent before the registration asked for OP_WRITE while the channel had no key yet.
+                applyInterestedOps(chan, handler::interestOps);
+                handler.armTimeouts(timer, idleTimeoutNanos, keepAliveNanos);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                handler.close();
+            }
+        };
+        if (Thread.currentThread() == selectorThread) {
+            //accepted by this SubReactor itself.
+            registration.run();
+        } else {
+            execute(registration);
+        }
+    }
+
+    /**
+     * Makes this SubReactor accept connections from the given channel on its own thread. The SubReactor owns the
+     * channel from now on and closes it with its selector.
+     *
+     * @param listener ServerSocketChannel bound to the port of the server, in non-blocking mode.
+     * @param acceptor Consumer that creates the handler of an accepted channel and registers it back in this SubReactor.
+     */
+    /*package*/ void listen(ServerSocketChannel listener, Consumer<SocketChannel> acceptor) {
+        this.listener = listener;
+        this.acceptor = acceptor;
+        execute(() -> {
+            try {
+                listener.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Accepts every pending connection in the backlog of the listener of this SubReactor.
+     */
+    private void handleAccept() {
+        try {
+            SocketChannel clientChan;
+            while ((clientChan = listener.accept()) != null) {
+                clientChan.configureBlocking(false);
+                acceptor.accept(clientChan);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the given task on the selection thread of this SubReactor.
+     *
+     * @param task Runnable to run on the next iteration of the selection loop.
+     */
+    /*package*/ void execute(Runnable task) {
+        selectorTasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Wakes the selector up, unless a wakeup is already pending.
+     */
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeups.increment();
+            selector.wakeup();
+        } else {
+            suppressedWakeups.increment();
+        }
+    }
+
+    /**
+     * Updates the selection operations of the given channel. The operations are computed on the selector thread when
+     * the update is applied, so an update that waited in the task queue never applies a stale value.
+     *
+     * @param chan SocketChannel owned by this SubReactor.
+     * @param ops  IntSupplier of the operations the channel currently waits for.
+     */
+    /*package*/ void updateInterestedOps(SocketChannel chan, IntSupplier ops) {
+        if (Thread.currentThread() == selectorThread) {
+            applyInterestedOps(chan, ops);
+        } else {
+            selectorTasks.add(() -> applyInterestedOps(chan, ops));
+            wakeup();
+        }
+    }
+
+    /**
+     * Looks the key of the channel up on the selector thread, a channel that is not registered yet gets its operations
+     * once the registration runs.
+     */
+    private void applyInterestedOps(SocketChannel chan, IntSupplier ops) {
+        SelectionKey key = chan.keyFor(selector);
+        if (key != null && key.isValid())
+            key.interestOps(ops.getAsInt());
+    }
+
+    /**
+     * Called once a connection owned by this SubReactor is closed, by any thread. Runs the given task after the tasks of
+     * the connection that are still queued, and detaches the connection from the selection loop.
+     *
+     * @param handler NonBlockingConnectionHandler of the closed connection.
+     * @param onClose Runnable to run as the last task of the connection.
+     */
+    /*package*/ void connectionClosed(NonBlockingConnectionHandler<T> handler, Runnable onClose) {
+        pool.submit(handler.getMailbox(), onClose);
+        execute(() -> handler.detach(timer));
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+            tasksRun.increment();
+        }
+    }
+
+    /*package*/ BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    /**
+     * @return the number of times the selector was woken up by other threads.
+     */
+    /*package*/ long getWakeupCount() {
+        return wakeups.sum();
+    }
+
+    /**
+     * @return the number of wakeups that were skipped because one was already pending.
+     */
+    /*package*/ long getSuppressedWakeupCount() {
+        return suppressedWakeups.sum();
+    }
+
+    /**
+     * @return the number of selector tasks that were run.
+     */
+    /*package*/ long getSelectorTaskCount() {
+        return tasksRun.sum();
+    }
+
+    /**
+     * Closes every connection owned by this SubReactor and then its selector, on the selection thread so the selection
+     * loop never sees its keys change under it, and waits for the selection thread to finish. The protocols of the
+     * connections are told they are closed on the ActorThreadPool, which still has to be shut down.
+     */
+    /*package*/ void close() throws IOException {
+        if (selectorThread == null) {
+            closeSelector();
+            return;
+        }
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NonBlockingConnectionHandler) {
+                    ((NonBlockingConnectionHandler<?>) key.attachment()).close();
+                }
+            }
+            //queued after the tasks of the closed connections, so they run first.
+            execute(() -> {
+                try {
+                    closeSelector();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+        });
+        try {
+            selectorThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeSelector() throws IOException {
+        selector.close();
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+}
@@ -0,0 +1,653 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+import bgu.spl.net.api.bidi.User;
+import bgu.spl.net.api.bidi.UserSet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps the users, the follow graph, the blocks, the post counters and the waiting messages on the disk.
+ * Every change is applied to the users and appended to a {@link WriteAheadLog} while holding the lock of the store,
+ * so the log holds the changes in the order they were made. The waiting messages are the exception: a mailbox is
+ * changed while holding its own lock, which is held until the change is logged, so the spill files of one user are not
+ * written while the store is locked for everyone. Every change records its effect rather than the request
+ * that caused it, and applying it again leaves the same state, so a snapshot that is taken while the users keep
+ * changing is still correct once the log that follows it is replayed over it. The waiting messages are numbered per
+ * user for the same reason: a message that the snapshot already holds is not added again.
+ * <p>
+ * A snapshot is taken in the background once enough changes were logged or enough time has passed. It is written to
+ * a new file that replaces the previous snapshot only once it is complete, and the log before it is deleted after.
+ */
+final class UserStore {
+
+    private static final byte REGISTER = 1;
+    private static final byte FOLLOW = 2;
+    private static final byte UNFOLLOW = 3;
+    private static final byte BLOCK = 4;
+    private static final byte POST = 5;
+    private static final byte ENQUEUE = 6;
+    private static final byte DRAIN = 7;
+
+    private static final int SNAPSHOT_MAGIC = 0x42475353; //"BGSS"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final int STREAM_BUFFER = 1 << 20;
+
+    private static final long SNAPSHOT_EVENTS = 1_000_000;
+    private static final long SNAPSHOT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long SNAPSHOT_CHECK_MILLIS = 1000;
+
+    private final Path directory;
+    private final ConcurrentHashMap<String, User> users;
+    private final OfflineMailboxes mailboxes;
+    private final WriteAheadLog log;
+    /**
+     * The users whose registration is logged but not on the disk yet, by their names. They are added to the users only
+     * once it is, so no one follows or blocks a user that may be gone after a restart. Only used while holding the lock
+     * of the store.
+     */
+    private final Map<String, User> registering = new HashMap<>();
+    /**
+     * The body of the record that is logged next, only used while holding the lock of the store.
+     */
+    private ByteBuffer record = ByteBuffer.allocate(1 << 10);
+    /**
+     * The users by their unique number, only used while recovering.
+     */
+    private List<User> usersById = new ArrayList<>();
+    private long eventsSinceSnapshot;
+    private long lastSnapshotNanos;
+    private Thread snapshotter;
+
+    /**
+     * @param directory Path of the directory of the snapshot and the log, created if it does not exist.
+     * @param users     ConcurrentHashMap from the name of every registered user to the user, filled by the recovery.
+     * @param mailboxes OfflineMailboxes to create the mailboxes of the recovered users with.
+     */
+    /*package*/ UserStore(Path directory, ConcurrentHashMap<String, User> users, OfflineMailboxes mailboxes)
+            throws IOException {
+        this.directory = directory;
+        this.users = users;
+        this.mailboxes = mailboxes;
+        this.log = new WriteAheadLog(directory);
+    }
+
+    /**
+     * Loads the last snapshot and replays the log after it, then starts logging new changes.
+     *
+     * @return the number the next registered user gets.
+     */
+    /*package*/ synchronized int recover() throws IOException {
+        long replayFrom = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            replayFrom = loadSnapshot(snapshot);
+        }
+        log.replay(replayFrom, this::replay);
+        int nextUserNumber = usersById.size();
+        usersById = null;
+        log.open();
+        lastSnapshotNanos = System.nanoTime();
+        snapshotter = new Thread(this::snapshotLoop, "user-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+        return nextUserNumber;
+    }
+
+    //region Changes
+
+    /**
+     * Adds a newly registered user once it is on the disk. Its name is taken from the start, but the user is not found
+     * among the users before that.
+     *
+     * @param user User to add.
+     * @throws IOException              if the user can not be written to the disk, it is not added then.
+     * @throws IllegalArgumentException if the name of the user is taken, by a registered user or one being registered.
+     */
+    /*package*/ void register(User user) throws IOException {
+        String name = user.getUserName();
+        long position;
+        synchronized (this) {
+            if (users.containsKey(name) || registering.containsKey(name)) {
+                throw new IllegalArgumentException("the user name " + name + " is taken");
+            }
+            begin(REGISTER);
+            record.putInt(user.getUserId());
+            putString(name);
+            putString(user.getPassword());
+            record.putShort(user.getAge());
+            position = commit();
+            registering.put(name, user);
+        }
+        boolean durable = false;
+        try {
+            log.awaitDurable(position);
+            durable = true;
+        } finally {
+            synchronized (this) {
+                registering.remove(name);
+                if (durable) {
+                    users.put(name, user);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a user follow or stop following another one, returns once it is on the disk.
+     *
+     * @param follower User who follows.
+     * @param followee User who is followed.
+     * @param follow   true to follow, false to unfollow.
+     * @throws IOException if the change can not be written to the disk, it is only kept until the server stops then.
+     */
+    /*package*/ void follow(User follower, User followee, boolean follow) throws IOException {
+        long position;
+        synchronized (this) {
+            begin(follow ? FOLLOW : UNFOLLOW);
+            record.putInt(follower.getUserId());
+            record.putInt(followee.getUserId());
+            position = commit();
+            applyFollow(follower, followee, follow);
+        }
+        log.awaitDurable(position);
+    }
+
+    /**
+     * Makes a user block another one, returns once it is on the disk.
+     *
+     * @param blocker User who blocks.
+     * @param blocked User who is blocked.
+     * @throws IOException if the change can not be written to the disk, it is only kept until the server stops then.
+     */
+    /*package*/ void block(User blocker, User blocked) throws IOException {
+        long position;
+        synchronized (this) {
+            begin(BLOCK);
+            record.putInt(blocker.getUserId());
+            record.putInt(blocked.getUserId());
+            position = commit();
+            applyBlock(blocker, blocked);
+        }
+        log.awaitDurable(position);
+    }
+
+    /**
+     * Counts a public post of the given user, without waiting for the disk. The new count is logged rather than the
+     * post, so replaying it over a snapshot that counted the post already does not count it twice.
+     *
+     * @param author User who posted.
+     */
+    /*package*/ synchronized void post(User author) throws IOException {
+        int posts = author.addPost();
+        begin(POST);
+        record.putInt(author.getUserId());
+        record.putInt(posts);
+        commit();
+    }
+
+    /**
+     * Puts a notification in the waiting messages of the given user, without waiting for the disk.
+     * The mailbox does its I/O while only its own lock is held, the lock of the store is only taken to log the record,
+     * and the records of a mailbox are still logged in the order its changes were made.
+     *
+     * @param recipient User to put the notification in the waiting messages of.
+     * @param toSave    Notification to put.
+     */
+    /*package*/ void enqueue(User recipient, Notification toSave) throws IOException {
+        OfflineMailbox mailbox = recipient.getWaitingMessages();
+        synchronized (mailbox) {
+            OfflineMailbox.Entry entry = mailbox.add(toSave);
+            synchronized (this) {
+                begin(ENQUEUE);
+                record.putInt(recipient.getUserId());
+                record.putLong(entry.getSeq());
+                record.putLong(entry.getMillis());
+                putBytes(entry.getFrame());
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest waiting messages of the given user after they were sent, without waiting for the disk.
+     * Locks like {@link #enqueue(User, Notification)}.
+     *
+     * @param recipient User whose waiting messages were sent.
+     * @param upToSeq   Long represents the number of the newest message that was sent.
+     */
+    /*package*/ void drain(User recipient, long upToSeq) throws IOException {
+        OfflineMailbox mailbox = recipient.getWaitingMessages();
+        synchronized (mailbox) {
+            mailbox.removeUpTo(upToSeq);
+            synchronized (this) {
+                begin(DRAIN);
+                record.putInt(recipient.getUserId());
+                record.putLong(upToSeq);
+                commit();
+            }
+        }
+    }
+
+    private static void applyFollow(User follower, User followee, boolean follow) {
+        if (follow) {
+            follower.addFollowing(followee);
+            followee.addFollower(follower);
+        } else {
+            follower.removeFollowing(followee);
+            followee.removeFollower(follower);
+        }
+    }
+
+    private static void applyBlock(User blocker, User blocked) {
+        blocked.addBlockedBy(blocker);
+        //blocking and blocked users should unfollow each other
+        blocker.removeFollower(blocked);
+        blocked.removeFollower(blocker);
+    }
+
+    private void begin(byte type) {
+        record.clear();
+        record.put(type);
+    }
+
+    private void putString(String string) {
+        putBytes(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void putBytes(byte[] bytes) {
+        if (record.remaining() < 4 + bytes.length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + 4 + bytes.length));
+            record.flip();
+            grown.put(record);
+            record = grown;
+        }
+        record.putInt(bytes.length);
+        record.put(bytes);
+    }
+
+    private long commit() throws IOException {
+        record.flip();
+        eventsSinceSnapshot++;
+        return log.append(record);
+    }
+
+    //endregion Changes
+
+    //region Recovery
+
+    private void replay(ByteBuffer body) throws IOException {
+        byte type = body.get();
+        switch (type) {
+            case REGISTER: {
+                int id = body.getInt();
+                String name = getString(body);
+                String password = getString(body);
+                short age = body.getShort();
+                if (id >= usersById.size() || usersById.get(id) == null) {
+                    addRecovered(new User(name, password, id, age, mailboxes.create(id)));
+                }
+                break;
+            }
+            case FOLLOW:
+            case UNFOLLOW:
+                applyFollow(userOf(body.getInt()), userOf(body.getInt()), type == FOLLOW);
+                break;
+            case BLOCK:
+                applyBlock(userOf(body.getInt()), userOf(body.getInt()));
+                break;
+            case POST:
+                userOf(body.getInt()).setNumOfPosts(body.getInt());
+                break;
+            case ENQUEUE: {
+                User recipient = userOf(body.getInt());
+                long sequence = body.getLong();
+                long millis = body.getLong();
+                //ignored if the snapshot holds it already.
+                recipient.getWaitingMessages().restore(sequence, millis, getBytes(body));
+                break;
+            }
+            case DRAIN:
+                userOf(body.getInt()).getWaitingMessages().removeUpTo(body.getLong());
+                break;
+            default:
+                throw new IOException("unknown record type " + type + " in the user log");
+        }
+    }
+
+    private User userOf(int id) throws IOException {
+        User user = id < usersById.size() ? usersById.get(id) : null;
+        if (user == null) {
+            throw new IOException("the user log refers to the unknown user " + id);
+        }
+        return user;
+    }
+
+    private void addRecovered(User user) {
+        while (usersById.size() <= user.getUserId()) {
+            usersById.add(null);
+        }
+        usersById.set(user.getUserId(), user);
+        users.put(user.getUserName(), user);
+    }
+
+    private static String getString(ByteBuffer body) {
+        return new String(getBytes(body), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return bytes;
+    }
+
+    //endregion Recovery
+
+    //region Snapshots
+
+    private void snapshotLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(SNAPSHOT_CHECK_MILLIS);
+                boolean due;
+                synchronized (this) {
+                    due = eventsSinceSnapshot >= SNAPSHOT_EVENTS
+                            || (eventsSinceSnapshot > 0 && System.nanoTime() - lastSnapshotNanos >= SNAPSHOT_INTERVAL_NANOS);
+                }
+                if (due) {
+                    try {
+                        snapshot();
+                    } catch (IOException ex) {
+                        //the log keeps everything, the next snapshot tries again.
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            //closing
+        }
+    }
+
+    /**
+     * Writes a snapshot of all the users and deletes the log before it.
+     */
+    /*package*/ void snapshot() throws IOException {
+        long replayFrom;
+        List<User> all;
+        synchronized (this) {
+            //every change from here on is in the new file of the log, and is replayed over the snapshot.
+            replayFrom = log.roll();
+            //a user registered after the roll is restored from the log, with every relation it is part of.
+            all = new ArrayList<>(users.values());
+            //the roll wrote every record before it, so the users that wait for their registration will be added.
+            all.addAll(registering.values());
+            eventsSinceSnapshot = 0;
+            lastSnapshotNanos = System.nanoTime();
+        }
+        Collections.sort(all);
+        BitSet included = new BitSet();
+        for (User user : all) {
+            included.set(user.getUserId());
+        }
+        Path temp = directory.resolve(SNAPSHOT_TEMP);
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), STREAM_BUFFER))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(replayFrom);
+            out.writeInt(all.size());
+            for (User user : all) {
+                out.writeInt(user.getUserId());
+                writeString(out, user.getUserName());
+                writeString(out, user.getPassword());
+                out.writeShort(user.getAge());
+            }
+            for (User user : all) {
+                writeRelations(out, user, included);
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.deleteBefore(replayFrom);
+    }
+
+    private void writeRelations(DataOutputStream out, User user, BitSet included) throws IOException {
+        UserSet following;
+        UserSet followers;
+        UserSet blockedBy;
+        int posts;
+        synchronized (this) {
+            //the sets are immutable, only reading them together has to be under the lock.
+            following = user.getFollowing();
+            followers = user.getFollowers();
+            blockedBy = user.getBlockedBy();
+            posts = user.getPostsAmm();
+        }
+        //the mailbox is consistent on its own, its messages are numbered.
+        List<OfflineMailbox.Entry> waiting = new ArrayList<>();
+        long lastSeq = user.getWaitingMessages().copyTo(waiting);
+        writeIds(out, following, included);
+        writeIds(out, followers, included);
+        writeIds(out, blockedBy, included);
+        out.writeInt(posts);
+        out.writeLong(lastSeq);
+        out.writeInt(waiting.size());
+        for (OfflineMailbox.Entry entry : waiting) {
+            out.writeLong(entry.getSeq());
+            out.writeLong(entry.getMillis());
+            out.writeInt(entry.getFrame().length);
+            out.write(entry.getFrame());
+        }
+    }
+
+    /**
+     * Writes the numbers of the users of the set that are in the snapshot, the rest are related by the log.
+     */
+    private static void writeIds(DataOutputStream out, UserSet toWrite, BitSet included) throws IOException {
+        int count = 0;
+        for (User user : toWrite) {
+            if (included.get(user.getUserId())) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (User user : toWrite) {
+            if (included.get(user.getUserId())) {
+                out.writeInt(user.getUserId());
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the position of the log to replay from.
+     */
+    private long loadSnapshot(Path snapshot) throws IOException {
+        verify(snapshot);
+        try (SnapshotReader in = new SnapshotReader(FileChannel.open(snapshot, StandardOpenOption.READ))) {
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException(snapshot + " is not a user snapshot");
+            }
+            long replayFrom = in.getLong();
+            int count = in.getInt();
+            List<User> all = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int id = in.getInt();
+                String name = in.getString();
+                String password = in.getString();
+                User user = new User(name, password, id, in.getShort(), mailboxes.create(id));
+                addRecovered(user);
+                all.add(user);
+            }
+            for (User user : all) {
+                //every set is built at once from its users, not added to a user at a time.
+                UserSet following = readSet(in);
+                UserSet followers = readSet(in);
+                user.restoreRelations(following, followers, readSet(in));
+                user.setNumOfPosts(in.getInt());
+                long lastSeq = in.getLong();
+                int waiting = in.getInt();
+                for (int i = 0; i < waiting; i++) {
+                    long sequence = in.getLong();
+                    long millis = in.getLong();
+                    user.getWaitingMessages().restore(sequence, millis, in.getBytes());
+                }
+                user.getWaitingMessages().restoreLastSeq(lastSeq);
+            }
+            return replayFrom;
+        }
+    }
+
+    private UserSet readSet(SnapshotReader in) throws IOException {
+        User[] members = new User[in.getInt()];
+        int[] ids = new int[members.length];
+        for (int i = 0; i < members.length; i++) {
+            ids[i] = in.getInt();
+            members[i] = userOf(ids[i]);
+        }
+        return UserSet.of(members, ids);
+    }
+
+    /**
+     * Checks the CRC32 at the end of the snapshot against the rest of it, in large reads before anything is parsed.
+     */
+    private static void verify(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long contentBytes = channel.size() - 8;
+            if (contentBytes < 0) {
+                throw new IOException(snapshot + " is corrupted");
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer chunk = ByteBuffer.allocateDirect(STREAM_BUFFER);
+            long position = 0;
+            while (position < contentBytes) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), contentBytes - position));
+                int read = channel.read(chunk, position);
+                if (read < 0) {
+                    throw new IOException(snapshot + " is corrupted");
+                }
+                position += read;
+                chunk.flip();
+                crc.update(chunk);
+            }
+            ByteBuffer expected = ByteBuffer.allocate(8);
+            while (expected.hasRemaining() && channel.read(expected, contentBytes + expected.position()) >= 0) {
+                //reading the trailer
+            }
+            if (expected.getLong(0) != crc.getValue()) {
+                throw new IOException(snapshot + " is corrupted");
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot through a large buffer that is refilled from the file, without a call per byte.
+     */
+    private static final class SnapshotReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER);
+
+        private SnapshotReader(FileChannel channel) {
+            this.channel = channel;
+            this.buffer.limit(0);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("the snapshot ended unexpectedly");
+                }
+            }
+            buffer.flip();
+        }
+
+        private byte get() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        private short getShort() throws IOException {
+            ensure(2);
+            return buffer.getShort();
+        }
+
+        private int getInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        private long getLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        private String getString() throws IOException {
+            return new String(getBytes(), StandardCharsets.UTF_8);
+        }
+
+        private byte[] getBytes() throws IOException {
+            byte[] bytes = new byte[getInt()];
+            int read = 0;
+            while (read < bytes.length) {
+                ensure(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - read);
+                buffer.get(bytes, read, chunk);
+                read += chunk;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    //endregion Snapshots
+
+    /**
+     * Stops taking snapshots and writes the rest of the log to the disk.
+     */
+    /*package*/ void close() throws IOException {
+        if (snapshotter != null) {
+            snapshotter.interrupt();
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,70 @@
+package bgu.spl.net.srv;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts virtual threads through reflection, so the server still compiles and runs on Java 8.
+ * Virtual threads are only available when the server runs on Java 21 or later.
+ */
+final class VirtualThreads {
+
+    /**
+     * Thread.ofVirtual(), or null if this JVM has no virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+    /**
+     * Thread.Builder.start(Runnable), or null if this JVM has no virtual threads.
+     */
+    private static final Method START;
+
+    static {
+        Method ofVirtual = null;
+        Method start = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+            //Java 19 and 20 have the method as a preview, which throws unless the JVM runs with --enable-preview.
+            ofVirtual.invoke(null);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException
+                | InvocationTargetException ex) {
+            ofVirtual = null;
+            start = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        START = start;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if this JVM supports virtual threads.
+     */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Starts the given task on a new virtual thread.
+     *
+     * @param task Runnable to run.
+     * @throws UnsupportedOperationException if this JVM has no virtual threads.
+     */
+    static void start(Runnable task) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+        }
+        try {
+            START.invoke(OF_VIRTUAL.invoke(null), task);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write ahead log of records, with group commit.
+ * Appending only copies the record into a buffer in memory. A single flusher thread writes everything that was
+ * appended since its last write and syncs it to the disk at once, so one fsync covers all the records that arrived
+ * while the previous one was in progress. A caller that needs its record on the disk waits for it with
+ * {@link #awaitDurable(long)}.
+ * <p>
+ * The log is a directory of files, each named after the position of its first record, where the position of a record
+ * is the number of bytes that were appended to the log before it. A record is the length of its body (int), the CRC32
+ * of its body (int) and the body, a record that was cut by a crash fails its check and ends the log.
+ */
+final class WriteAheadLog {
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int INITIAL_BUFFER = 1 << 16;
+
+    private final Path directory;
+    /**
+     * Guards the appending of records: pending, nextPosition and closed.
+     */
+    private final Object appendLock = new Object();
+    /**
+     * Held by whoever writes to the file, always taken before the append lock.
+     */
+    private final Object writeLock = new Object();
+    private final Object durableLock = new Object();
+
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long nextPosition;
+    private boolean closed;
+    private volatile long durablePosition;
+    /**
+     * Set once the flusher stopped, after the log was closed or it failed to write.
+     */
+    private volatile boolean stopped;
+    private FileChannel file;
+    private Thread flusher;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param directory Path of the directory of the log, created if it does not exist.
+     */
+    /*package*/ WriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Reads the records of the log from the given position on. Has to be called once, before the log is opened for
+     * appending.
+     *
+     * @param fromPosition Long represents the position of the first file to read, every file before it is deleted.
+     * @param reader       RecordReader to pass every record to, in the order they were appended.
+     * @throws IOException if a file can not be read, or a record is rejected by the reader.
+     */
+    /*package*/ void replay(long fromPosition, RecordReader reader) throws IOException {
+        long position = fromPosition;
+        for (Path path : files()) {
+            long start = startOf(path);
+            if (start < fromPosition) {
+                Files.delete(path);
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                CRC32 check = new CRC32();
+                while (records.remaining() >= HEADER_BYTES) {
+                    int length = records.getInt(records.position());
+                    if (length <= 0 || length > records.remaining() - HEADER_BYTES) {
+                        break;
+                    }
+                    int sum = records.getInt(records.position() + 4);
+                    ByteBuffer body = records.duplicate();
+                    body.position(records.position() + HEADER_BYTES).limit(records.position() + HEADER_BYTES + length);
+                    check.reset();
+                    check.update(body.duplicate());
+                    if ((int) check.getValue() != sum) {
+                        break;
+                    }
+                    reader.read(body);
+                    records.position(records.position() + HEADER_BYTES + length);
+                }
+                position = start + records.position();
+            }
+        }
+        this.nextPosition = position;
+        this.durablePosition = position;
+    }
+
+    /**
+     * Starts a new file at the end of the log and the thread that writes to it.
+     */
+    /*package*/ void open() throws IOException {
+        synchronized (writeLock) {
+            this.file = create(nextPosition);
+        }
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param body ByteBuffer holding the body of the record between its position and limit, it is copied.
+     * @return the position right after the record, to pass to {@link #awaitDurable(long)}.
+     * @throws IOException if the log is closed, or stopped after it failed to write.
+     */
+    /*package*/ long append(ByteBuffer body) throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IOException("the log is closed");
+            }
+            int length = body.remaining();
+            if (pending.remaining() < HEADER_BYTES + length) {
+                pending = grow(pending, HEADER_BYTES + length);
+            }
+            crc.reset();
+            crc.update(body.duplicate());
+            pending.putInt(length);
+            pending.putInt((int) crc.getValue());
+            pending.put(body);
+            nextPosition += HEADER_BYTES + length;
+            if (pending.position() == HEADER_BYTES + length) {
+                //the flusher waits for the first record after each write.
+                appendLock.notify();
+            }
+            return nextPosition;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity <<= 1;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Waits until every record up to the given position is on the disk.
+     *
+     * @param position Long represents a position that {@link #append(ByteBuffer)} returned.
+     * @throws IOException if the flusher stopped before the record was written, after it failed to write.
+     */
+    /*package*/ void awaitDurable(long position) throws IOException {
+        if (durablePosition >= position) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (durableLock) {
+            while (durablePosition < position && !stopped) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durablePosition < position) {
+            throw new IOException("the log stopped before the record at " + position + " was written");
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (appendLock) {
+                    while (pending.position() == 0 && !closed) {
+                        appendLock.wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                }
+                synchronized (writeLock) {
+                    long position;
+                    synchronized (appendLock) {
+                        if (pending.position() == 0) {
+                            //written by a roll in the meantime.
+                            continue;
+                        }
+                        position = swap();
+                    }
+                    write(position);
+                }
+            }
+        } catch (InterruptedException ex) {
+            //closing
+        } catch (IOException ex) {
+            //nothing can be made durable anymore, so nothing is accepted anymore.
+            ex.printStackTrace();
+            synchronized (appendLock) {
+                closed = true;
+            }
+        } finally {
+            stopped = true;
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the pending records for writing, called while holding both locks.
+     *
+     * @return the position right after the taken records.
+     */
+    private long swap() {
+        ByteBuffer taken = pending;
+        pending = writing;
+        pending.clear();
+        writing = taken;
+        writing.flip();
+        return nextPosition;
+    }
+
+    /**
+     * Writes the taken records and syncs them, called while holding the write lock.
+     */
+    private void write(long position) throws IOException {
+        while (writing.hasRemaining()) {
+            file.write(writing);
+        }
+        file.force(false);
+        durablePosition = position;
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Ends the current file and starts a new one, every record that is appended from now on goes to the new file.
+     * Appending waits for this to finish.
+     *
+     * @return the position of the new file.
+     */
+    /*package*/ long roll() throws IOException {
+        synchronized (writeLock) {
+            synchronized (appendLock) {
+                write(swap());
+                file.close();
+                file = create(nextPosition);
+                return nextPosition;
+            }
+        }
+    }
+
+    /**
+     * Deletes the files of the log that end before the given position.
+     *
+     * @param position Long represents the position of a file that {@link #roll()} returned.
+     */
+    /*package*/ void deleteBefore(long position) throws IOException {
+        for (Path path : files()) {
+            if (startOf(path) < position) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Writes every record that was appended and stops the flusher.
+     */
+    /*package*/ void close() throws IOException {
+        synchronized (appendLock) {
+            closed = true;
+            appendLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            file.close();
+        }
+    }
+
+    private FileChannel create(long start) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("%s%020d%s", PREFIX, start, SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null); //the names are zero padded, so they sort by position.
+        return files;
+    }
+
+    private static long startOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Receives the records of the log while it is replayed.
+     */
+    /*package*/ interface RecordReader {
+        /**
+         * @param body ByteBuffer holding the body of a record between its position and limit.
+         */
+        void read(ByteBuffer body) throws IOException;
+    }
+}
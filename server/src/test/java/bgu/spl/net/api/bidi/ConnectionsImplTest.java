@@ -0,0 +1,114 @@
+package bgu.spl.net.api.bidi;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.srv.BufferPool;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.FileRegion;
+import bgu.spl.net.srv.SharedFrame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionsImplTest {
+
+    @Test
+    public void aMulticastIsEncodedOnceIntoAPooledBufferThatComesBackAfterTheLastRecipient() {
+        BufferPool buffers = new BufferPool();
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>(new StringEncoder(), buffers);
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        int[] ids = {connections.addConnection(first), connections.addConnection(second)};
+
+        assertEquals(2, connections.multicast(ids, "hello"));
+        assertEquals(1, buffers.getOutstandingCount());
+        ByteBuffer firstView = first.frames.get(0).view;
+        ByteBuffer secondView = second.frames.get(0).view;
+        assertTrue("the frame is copied on every write", firstView.isDirect());
+        assertTrue(firstView.isReadOnly());
+        //every recipient reads at a position of its own.
+        assertEquals("hello", read(firstView));
+        assertEquals("hello", read(secondView));
+
+        first.frames.get(0).frame.release();
+        assertEquals(1, buffers.getOutstandingCount());
+        second.frames.get(0).frame.release();
+        assertEquals(0, buffers.getOutstandingCount());
+    }
+
+    @Test
+    public void withoutAPoolTheFrameStaysOnTheHeap() {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>(new StringEncoder());
+        RecordingHandler handler = new RecordingHandler();
+        connections.addConnection(handler);
+        connections.addConnection(new RecordingHandler());
+        connections.broadcast("hi");
+        assertFalse(handler.frames.get(0).view.isDirect());
+        assertEquals("hi", read(handler.frames.get(0).view));
+    }
+
+    private static String read(ByteBuffer view) {
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Received {
+        private final SharedFrame frame;
+        private final ByteBuffer view;
+
+        private Received(SharedFrame frame) {
+            this.frame = frame;
+            this.view = frame.view();
+        }
+    }
+
+    private static final class RecordingHandler implements ConnectionHandler<String> {
+        private final List<Received> frames = new ArrayList<>();
+
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public void sendFrame(String msg, ByteBuffer frame) {
+        }
+
+        @Override
+        public void sendShared(String msg, SharedFrame frame) {
+            frames.add(new Received(frame));
+        }
+
+        @Override
+        public void sendRegion(FileRegion region) {
+            region.close();
+        }
+
+        @Override
+        public int getOutboundQueueBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class StringEncoder implements MessageEncoderDecoder<String> {
+        @Override
+        public String decodeNextByte(byte nextByte) {
+            return null;
+        }
+
+        @Override
+        public byte[] encode(String message) {
+            return message.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
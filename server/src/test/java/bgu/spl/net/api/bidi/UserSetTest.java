@@ -0,0 +1,153 @@
+package bgu.spl.net.api.bidi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UserSetTest {
+
+    /**
+     * Numbers that share their lowest 5 bits, or more, so they meet in the same slots of the first levels. The last
+     * two reach the 2 bits of the deepest level, and 31 is the slot of the sign bit.
+     */
+    private static final int[] COLLIDING = {7, 7 + 32, 7 + 64, 7 + 32 * 32, 7 + 32 * 32 * 32, 31, 31 + 32,
+            7 | 1 << 30, 7 | 1 << 29, 31 | 1 << 30};
+
+    private static User user(int id) {
+        return new User("user" + id, "password", id, (short) 20, null);
+    }
+
+    private static Set<Integer> idsOf(UserSet set) {
+        Set<Integer> ids = new HashSet<>();
+        for (User user : set) {
+            assertTrue("iterated " + user.getUserId() + " twice", ids.add(user.getUserId()));
+        }
+        assertEquals(set.size(), ids.size());
+        return ids;
+    }
+
+    @Test
+    public void plusAndMinusKeepCollidingUsersApart() {
+        List<User> users = new ArrayList<>();
+        for (int id : COLLIDING) {
+            users.add(user(id));
+        }
+        UserSet set = UserSet.EMPTY;
+        Set<Integer> expected = new HashSet<>();
+        for (User user : users) {
+            set = set.plus(user);
+            expected.add(user.getUserId());
+            assertEquals(expected, idsOf(set));
+        }
+        for (User user : users) {
+            assertTrue(set.contains(user));
+            assertSame(set, set.plus(user));
+        }
+        assertFalse(set.contains(user(7 + 96)));
+        for (User user : users) {
+            set = set.minus(user);
+            expected.remove(user.getUserId());
+            assertFalse(set.contains(user));
+            assertEquals(expected, idsOf(set));
+        }
+        assertSame(UserSet.EMPTY, set);
+    }
+
+    @Test
+    public void randomChangesMatchAHashSet() {
+        Random random = new Random(21);
+        User[] users = new User[4096];
+        for (int i = 0; i < users.length; i++) {
+            //few distinct low bits, so most users collide on the first levels.
+            users[i] = user((random.nextInt(1 << 16) << 5) | random.nextInt(4));
+        }
+        UserSet set = UserSet.EMPTY;
+        Set<Integer> expected = new HashSet<>();
+        for (int step = 0; step < 50000; step++) {
+            User user = users[random.nextInt(users.length)];
+            if (random.nextBoolean()) {
+                set = set.plus(user);
+                expected.add(user.getUserId());
+            } else {
+                set = set.minus(user);
+                expected.remove(user.getUserId());
+            }
+            assertEquals(expected.contains(user.getUserId()), set.contains(user));
+        }
+        assertEquals(expected, idsOf(set));
+        assertEquals(expected.size(), set.toArray().length);
+    }
+
+    @Test
+    public void ofBuildsTheSameTrieAsPlus() {
+        Random random = new Random(42);
+        List<User> users = new ArrayList<>();
+        for (int id : COLLIDING) {
+            users.add(user(id));
+        }
+        for (int i = 0; i < 5000; i++) {
+            users.add(user(random.nextInt(Integer.MAX_VALUE)));
+        }
+        UserSet added = UserSet.EMPTY;
+        for (User user : users) {
+            added = added.plus(user);
+        }
+        UserSet built = UserSet.of(users.toArray(new User[0]));
+        assertEquals(added.size(), built.size());
+        //the same users in the same slots iterate in the same order.
+        assertArrayEquals(ids(added.toArray()), ids(built.toArray()));
+        //users that come in the order of the trie already, as a snapshot holds them.
+        assertArrayEquals(ids(added.toArray()), ids(UserSet.of(added.toArray()).toArray()));
+        for (User user : users) {
+            assertTrue(built.contains(user));
+        }
+        User removed = users.get(3);
+        assertFalse(built.minus(removed).contains(removed));
+        assertEquals(built.size() - 1, built.minus(removed).size());
+    }
+
+    @Test
+    public void ofSmallSets() {
+        assertSame(UserSet.EMPTY, UserSet.of(new User[0]));
+        User single = user(31);
+        UserSet one = UserSet.of(new User[]{single});
+        assertEquals(1, one.size());
+        assertTrue(one.contains(single));
+        assertSame(UserSet.EMPTY, one.minus(single));
+        User twin = user(31);
+        assertEquals(1, UserSet.of(new User[]{single, twin}).size());
+    }
+
+    private static int[] ids(User[] users) {
+        int[] ids = new int[users.length];
+        for (int i = 0; i < users.length; i++) {
+            ids[i] = users[i].getUserId();
+        }
+        return ids;
+    }
+
+    @Test
+    public void iteratorAndForEachAgree() {
+        User[] users = new User[COLLIDING.length];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = user(COLLIDING[i]);
+        }
+        UserSet set = UserSet.of(users.clone());
+        List<User> iterated = new ArrayList<>();
+        for (User user : set) {
+            iterated.add(user);
+        }
+        assertEquals(Arrays.asList(set.toArray()), iterated);
+    }
+}
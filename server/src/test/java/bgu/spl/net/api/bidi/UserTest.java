@@ -0,0 +1,89 @@
+package bgu.spl.net.api.bidi;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserTest {
+
+    private final User user = new User("alice", "password", 1, (short) 20, null);
+
+    @Test
+    public void aLoginGoesOnlineOnceItsWaitingMessagesWereSent() {
+        assertFalse(user.isConnected());
+        assertEquals(-1, user.acquireSession());
+
+        assertTrue(user.beginLogin(7));
+        assertTrue(user.isConnected());
+        assertEquals(7, user.getConnId());
+        assertFalse("logged in twice", user.beginLogin(8));
+        //messages keep going to the waiting messages while they are sent.
+        assertEquals(-1, user.acquireSession());
+        assertFalse("the login was started on another connection", user.acquireLogin(8));
+
+        assertTrue(user.acquireLogin(7));
+        user.finishLogin(7);
+        assertEquals(7, user.acquireSession());
+        user.releaseSession();
+    }
+
+    @Test
+    public void aParkedSessionSendsToTheWaitingMessagesUntilTheyAreSentAgain() {
+        user.beginLogin(7);
+        user.acquireLogin(7);
+        user.finishLogin(7);
+
+        assertFalse("parked on another connection", user.parkSession(8));
+        assertTrue(user.parkSession(7));
+        assertFalse("parked twice", user.parkSession(7));
+        assertEquals(-1, user.acquireSession());
+
+        assertTrue(user.acquireLogin(7));
+        user.finishLogin(7);
+        assertEquals(7, user.acquireSession());
+        user.releaseSession();
+    }
+
+    @Test
+    public void aLoggedOutUserMayLogInAgain() {
+        user.beginLogin(7);
+        user.acquireLogin(7);
+        user.finishLogin(7);
+        user.logout();
+
+        assertFalse(user.isConnected());
+        assertEquals(-1, user.getConnId());
+        assertEquals(-1, user.acquireSession());
+        assertTrue(user.beginLogin(8));
+        assertEquals(8, user.getConnId());
+    }
+
+    @Test(timeout = 10000)
+    public void aLogoutWaitsForTheSendersInFlight() throws InterruptedException {
+        user.beginLogin(7);
+        user.acquireLogin(7);
+        user.finishLogin(7);
+        assertEquals(7, user.acquireSession());
+
+        CountDownLatch loggedOut = new CountDownLatch(1);
+        Thread logout = new Thread(() -> {
+            user.logout();
+            loggedOut.countDown();
+        });
+        logout.start();
+        //past the spins, the logout parks until the sender is done.
+        assertFalse(loggedOut.await(200, TimeUnit.MILLISECONDS));
+        assertEquals("a new sender got in while logging out", -1, user.acquireSession());
+        assertFalse("logged in while logging out", user.beginLogin(8));
+
+        user.releaseSession();
+        assertTrue(loggedOut.await(5, TimeUnit.SECONDS));
+        assertFalse(user.isConnected());
+        assertTrue(user.beginLogin(8));
+    }
+}
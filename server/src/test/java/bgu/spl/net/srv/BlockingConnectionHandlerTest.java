@@ -0,0 +1,145 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.BidiMessagingProtocol;
+import bgu.spl.net.api.bidi.Connections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockingConnectionHandlerTest {
+
+    private static final int SMALL_SOCKET_BUFFER = 4096;
+
+    private ServerSocket listener;
+    private Socket client;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    @Before
+    public void listen() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void close() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        listener.close();
+    }
+
+    /**
+     * Connects a client and serves it with a handler on threads of its own, as the server does.
+     */
+    private BlockingConnectionHandler<String> serve(LineProtocol protocol, int low, int high,
+                                                    SlowConsumerPolicy policy) throws IOException {
+        client = new Socket();
+        client.setReceiveBufferSize(SMALL_SOCKET_BUFFER);
+        client.connect(listener.getLocalSocketAddress());
+        Socket accepted = listener.accept();
+        accepted.setSendBufferSize(SMALL_SOCKET_BUFFER);
+        BlockingConnectionHandler<String> handler =
+                new BlockingConnectionHandler<>(accepted, new LineEncoderDecoder(), protocol, low, high, policy);
+        handler.setOnFinished(finished::countDown);
+        protocol.handler = handler;
+        new Thread(handler).start();
+        new Thread(handler::runWriter).start();
+        return handler;
+    }
+
+    private static String line(int number) {
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        return number + " " + new String(padding);
+    }
+
+    @Test(timeout = 20000)
+    public void sendingToAClientThatDoesNotReadNeverBlocks() throws IOException {
+        LineProtocol protocol = new LineProtocol();
+        BlockingConnectionHandler<String> handler = serve(protocol, 1 << 14, 1 << 16, SlowConsumerPolicy.PARK);
+        //far more than the socket buffers and the high watermark hold together.
+        for (int i = 0; i < 10000; i++) {
+            handler.send(line(i));
+        }
+        assertTrue("no message was parked", protocol.parked.get() > 0);
+        assertTrue(handler.getOutboundQueueBytes() <= (1 << 16) + line(10000).length() + 1);
+    }
+
+    @Test(timeout = 20000)
+    public void aSlowClientIsDisconnected() throws Exception {
+        BlockingConnectionHandler<String> handler =
+                serve(new LineProtocol(), 1 << 14, 1 << 16, SlowConsumerPolicy.DISCONNECT);
+        for (int i = 0; i < 10000 && finished.getCount() > 0; i++) {
+            handler.send(line(i));
+        }
+        assertTrue("the connection was not closed", finished.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 20000)
+    public void framesArriveInOrderAndTheLastAnswerBeforeTheClose() throws IOException {
+        BlockingConnectionHandler<String> handler =
+                serve(new LineProtocol(), 1 << 14, 1 << 16, SlowConsumerPolicy.DISCONNECT);
+        for (int i = 0; i < 1000; i++) {
+            handler.send(String.valueOf(i));
+        }
+        client.getOutputStream().write("bye\n".getBytes(StandardCharsets.UTF_8));
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), in.readLine());
+        }
+        assertEquals("ack", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    /**
+     * Answers "bye" with "ack" and terminates, and parks every message once the client stops reading.
+     */
+    private static final class LineProtocol implements BidiMessagingProtocol<String> {
+        private final AtomicInteger parked = new AtomicInteger();
+        private volatile boolean terminate;
+        private volatile ConnectionHandler<String> handler;
+
+        @Override
+        public void start(int connectionId, Connections<String> connections) {
+        }
+
+        @Override
+        public void process(String message) {
+            if (message.equals("bye")) {
+                handler.send("ack");
+                terminate = true;
+            }
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return terminate;
+        }
+
+        @Override
+        public boolean isDroppable(String message) {
+            return true;
+        }
+
+        @Override
+        public boolean park(String message) {
+            parked.incrementAndGet();
+            return true;
+        }
+    }
+}
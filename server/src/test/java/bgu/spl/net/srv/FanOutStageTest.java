@@ -0,0 +1,166 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Connections;
+import bgu.spl.net.api.bidi.Messages.Message;
+import bgu.spl.net.api.bidi.Messages.Notification;
+import bgu.spl.net.api.bidi.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutStageTest {
+
+    private static final int CONNECTION_ID = 5;
+    private static final int REPLAY_BUDGET = 64 << 10;
+    /**
+     * The number of bytes of waiting messages that are sent at once, see FanOutStage.
+     */
+    private static final int REPLAY_CHUNK_BYTES = 64 << 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DataBase dataBase;
+    private FanOutStage stage;
+    private User user;
+    private final ClientConnection client = new ClientConnection();
+
+    @Before
+    public void open() {
+        dataBase = new DataBase(folder.getRoot().toPath(), 10000, 0);
+        dataBase.registerUser("bob", "password", (short) 2000, (short) 1, (short) 1);
+        user = dataBase.getUserByName("bob");
+        stage = new FanOutStage(1, dataBase, REPLAY_BUDGET);
+    }
+
+    @After
+    public void close() {
+        stage.close();
+        dataBase.close();
+    }
+
+    private static Notification post(int number) {
+        char[] content = new char[10000];
+        Arrays.fill(content, 'x');
+        return new Notification((byte) 1, "alice", number + " " + new String(content));
+    }
+
+    @Test(timeout = 20000)
+    public void aReplayKeepsAtMostItsBudgetQueuedAndGoesOnOnceTheClientRead() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            dataBase.addWaitingMessage(user, post(i));
+            expected.write(post(i).convertMessageToBytes());
+        }
+
+        assertTrue(user.beginLogin(CONNECTION_ID));
+        stage.submitLogin(client, user, CONNECTION_ID);
+        //a client that does not read gets the budget of the replay, and a chunk that started under it.
+        Thread.sleep(200);
+        assertTrue("nothing was replayed", client.queued() > 0);
+        assertTrue("the replay went over its budget", client.queued() < REPLAY_BUDGET + REPLAY_CHUNK_BYTES);
+        assertEquals("online before the waiting messages were sent", -1, user.acquireSession());
+
+        //delivered while replaying, so it goes after the waiting messages.
+        stage.submit(client, Collections.singletonList(user), post(100));
+        expected.write(post(100).convertMessageToBytes());
+
+        while (user.acquireSession() == -1) {
+            client.read();
+            Thread.sleep(1);
+        }
+        user.releaseSession();
+        assertArrayEquals(expected.toByteArray(), client.received());
+        assertEquals(0, user.getWaitingMessages().size());
+        assertEquals(0, client.multicasts);
+
+        stage.submit(client, Collections.singletonList(user), post(101));
+        while (stage.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        assertEquals("an online user was not sent to", 1, client.multicasts);
+    }
+
+    /**
+     * The connection of the user, whose client reads only when the test says so.
+     */
+    private static final class ClientConnection implements Connections<Message> {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private int queued;
+        private int multicasts;
+
+        private synchronized int queued() {
+            return queued;
+        }
+
+        private synchronized void read() {
+            queued = 0;
+        }
+
+        private synchronized byte[] received() {
+            return received.toByteArray();
+        }
+
+        @Override
+        public boolean send(int connectionId, Message msg) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void broadcast(Message msg) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized int multicast(int[] connectionIds, Message msg) {
+            multicasts++;
+            return connectionIds.length;
+        }
+
+        @Override
+        public synchronized boolean sendEncoded(int connectionId, Message msg, ByteBuffer frame) {
+            queued += frame.remaining();
+            received.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return true;
+        }
+
+        @Override
+        public synchronized boolean sendRegion(int connectionId, FileRegion region) {
+            queued += (int) region.remaining();
+            WritableByteChannel target = Channels.newChannel(received);
+            try {
+                while (region.remaining() > 0) {
+                    region.transferTo(target);
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                region.close();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized int getOutboundQueueBytes(int connectionId) {
+            return queued;
+        }
+
+        @Override
+        public void disconnect(int connectionId) {
+        }
+    }
+}
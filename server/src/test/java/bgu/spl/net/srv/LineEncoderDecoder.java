@@ -0,0 +1,30 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Messages of the tests of the servers: lines of UTF-8 text.
+ */
+/*package*/ final class LineEncoderDecoder implements MessageEncoderDecoder<String> {
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    @Override
+    public String decodeNextByte(byte nextByte) {
+        if (nextByte != '\n') {
+            line.write(nextByte);
+            return null;
+        }
+        String decoded = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        return decoded;
+    }
+
+    @Override
+    public byte[] encode(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,134 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class MessageLogTest {
+
+    private static final int SEGMENT_BYTES = 1 << 12;
+    /**
+     * The length, the kind, the time and the length of the posting user, before the posting user and the content.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private MessageLog log;
+
+    @Before
+    public void open() throws IOException {
+        directory = folder.getRoot().toPath();
+        log = new MessageLog(directory, SEGMENT_BYTES, 0, 0);
+    }
+
+    @After
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void reopen() throws IOException {
+        log.close();
+        log = new MessageLog(directory, SEGMENT_BYTES, 0, 0);
+    }
+
+    private static Notification post(String content) {
+        return new Notification((byte) 1, "alice", content);
+    }
+
+    private static int recordBytes(String content) {
+        return RECORD_OVERHEAD + "alice".length() + content.length();
+    }
+
+    @Test
+    public void messagesAreReadBackAcrossSegmentsAndRestarts() throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            indexes.add(log.append(post("message " + i)));
+        }
+        reopen();
+        assertEquals(500, log.nextIndex());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("message " + i, log.read(indexes.get(i)).getContent());
+        }
+        assertEquals(500, log.append(post("after the restart")));
+        assertNull(log.read(501));
+    }
+
+    @Test
+    public void recordsBehindAnUnfinishedOneAreNotReadAfterNewAppends() throws IOException {
+        log.append(post("first"));
+        log.append(post("second"));
+        log.append(post("third"));
+        log.close();
+        log = null;
+
+        //a crash while the second record was written, after the third one was.
+        Path segment = directory.resolve(String.format("%020d.log", 0));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), recordBytes("first"));
+        }
+        log = new MessageLog(directory, SEGMENT_BYTES, 0, 0);
+        assertEquals(1, log.nextIndex());
+
+        //as long as the second record, so it ends right where the stale third one starts.
+        log.append(post("SECOND"));
+        reopen();
+        assertEquals(2, log.nextIndex());
+        assertEquals("SECOND", log.read(1).getContent());
+        assertNull(log.read(2));
+    }
+
+    @Test
+    public void concurrentAppendsGetDistinctIndexes() throws Exception {
+        final ConcurrentLinkedQueue<Long> indexes = new ConcurrentLinkedQueue<>();
+        Thread[] senders = new Thread[4];
+        for (int t = 0; t < senders.length; t++) {
+            final int sender = t;
+            senders[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        indexes.add(log.append(post(sender + ":" + i)));
+                    }
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            senders[t].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        assertEquals(4000, log.nextIndex());
+        reopen();
+        boolean[] seen = new boolean[4000];
+        for (long index : indexes) {
+            String content = log.read(index).getContent();
+            int separator = content.indexOf(':');
+            int number = Integer.parseInt(content.substring(0, separator)) * 1000
+                    + Integer.parseInt(content.substring(separator + 1));
+            assertFalse("read " + content + " twice", seen[number]);
+            seen[number] = true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.BidiMessagingProtocol;
+import bgu.spl.net.api.bidi.Connections;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NonBlockingConnectionHandlerTest {
+
+    private static final int SMALL_SOCKET_BUFFER = 4096;
+    private static final int LOW_WATERMARK = 1 << 14;
+    private static final int HIGH_WATERMARK = 1 << 16;
+    /**
+     * The lines a flood sends, far more than the socket buffers and the high watermark hold together.
+     */
+    private static final int FLOOD_LINES = 10000;
+
+    private Reactor<String> reactor;
+    private Thread serving;
+    private Socket client;
+    private final AtomicInteger parked = new AtomicInteger(0);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @After
+    public void stop() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (reactor != null) {
+            reactor.close();
+            serving.join(10000);
+        }
+    }
+
+    /**
+     * Starts a reactor with small watermarks and connects a client with a small receive buffer to it.
+     */
+    private BufferedReader serve(SlowConsumerPolicy policy) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        reactor = new Reactor<>(2, 1, port, FloodProtocol::new, LineEncoderDecoder::new);
+        reactor.setOutboundWatermarks(LOW_WATERMARK, HIGH_WATERMARK);
+        reactor.setSlowConsumerPolicy(policy);
+        serving = new Thread(reactor::serve);
+        serving.start();
+        for (int attempt = 0; ; attempt++) {
+            client = new Socket();
+            client.setReceiveBufferSize(SMALL_SOCKET_BUFFER);
+            try {
+                client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                break;
+            } catch (IOException ex) {
+                client.close();
+                if (attempt == 100) {
+                    throw ex;
+                }
+                //not listening yet.
+                Thread.sleep(50);
+            }
+        }
+        client.getOutputStream().write("flood\n".getBytes(StandardCharsets.UTF_8));
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static String line(int number) {
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        return number + " " + new String(padding);
+    }
+
+    private static int numberOf(String line) {
+        return Integer.parseInt(line.substring(0, line.indexOf(' ')));
+    }
+
+    @Test(timeout = 30000)
+    public void aClientThatDoesNotReadIsDisconnected() throws Exception {
+        serve(SlowConsumerPolicy.DISCONNECT);
+        assertTrue("the slow client was not disconnected", closed.await(20, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void parkedMessagesAreHandedBackToTheProtocol() throws Exception {
+        BufferedReader in = serve(SlowConsumerPolicy.PARK);
+        int received = 0;
+        for (String read = in.readLine(); !read.equals("end"); read = in.readLine()) {
+            received++;
+        }
+        assertTrue("no message was parked", parked.get() > 0);
+        assertEquals(FLOOD_LINES, received + parked.get());
+    }
+
+    @Test(timeout = 30000)
+    public void theOldestMessagesAreDroppedAndTheNewestKept() throws Exception {
+        BufferedReader in = serve(SlowConsumerPolicy.DROP_OLDEST);
+        int received = 0;
+        int last = -1;
+        for (String read = in.readLine(); !read.equals("end"); read = in.readLine()) {
+            int number = numberOf(read);
+            assertTrue("line " + number + " came after line " + last, number > last);
+            last = number;
+            received++;
+        }
+        assertTrue("no message was dropped", received < FLOOD_LINES);
+        assertEquals(FLOOD_LINES - 1, last);
+    }
+
+    /**
+     * Answers "flood" with a flood of droppable lines and a last line that is never dropped.
+     */
+    private final class FloodProtocol implements BidiMessagingProtocol<String> {
+        private int connectionId;
+        private Connections<String> connections;
+
+        @Override
+        public void start(int connectionId, Connections<String> connections) {
+            this.connectionId = connectionId;
+            this.connections = connections;
+        }
+
+        @Override
+        public void process(String message) {
+            for (int i = 0; i < FLOOD_LINES; i++) {
+                if (!connections.send(connectionId, line(i))) {
+                    //disconnected.
+                    return;
+                }
+            }
+            connections.send(connectionId, "end");
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return false;
+        }
+
+        @Override
+        public boolean isDroppable(String message) {
+            return !message.equals("end");
+        }
+
+        @Override
+        public boolean park(String message) {
+            parked.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+            connections.disconnect(connectionId);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineMailboxTest {
+
+    private static final int USER_ID = 3;
+    /**
+     * The number of messages a mailbox keeps on the heap at most, see OfflineMailbox.
+     */
+    private static final int HEAD_ENTRIES = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OfflineMailbox mailbox(int maxMessages, long ttlMillis, long headBudgetBytes) throws IOException {
+        return new OfflineMailboxes(directory(), maxMessages, ttlMillis, headBudgetBytes).create(USER_ID);
+    }
+
+    private Path directory() {
+        return folder.getRoot().toPath().resolve("mailboxes");
+    }
+
+    private Path dataFile() {
+        return directory().resolve(USER_ID + ".dat");
+    }
+
+    private static Notification post(int number, int padding) {
+        char[] content = new char[padding];
+        Arrays.fill(content, 'x');
+        return new Notification((byte) 1, "alice", number + " " + new String(content));
+    }
+
+    private static byte[] frame(int number, int padding) {
+        return post(number, padding).convertMessageToBytes();
+    }
+
+    private static List<OfflineMailbox.Entry> peekAll(OfflineMailbox mailbox) {
+        List<OfflineMailbox.Entry> entries = new ArrayList<>();
+        mailbox.peek(Long.MAX_VALUE, Long.MAX_VALUE, entries);
+        return entries;
+    }
+
+    private static byte[] read(FileRegion region) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(bytes);
+        try {
+            while (region.remaining() > 0) {
+                region.transferTo(target);
+            }
+        } finally {
+            region.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void messagesBeyondTheHeadAreSpilledAndSentStraightFromTheFile() throws IOException {
+        OfflineMailbox mailbox = mailbox(1000, 0, 1 << 20);
+        for (int i = 1; i <= 100; i++) {
+            mailbox.add(post(i, 10));
+        }
+        assertEquals(100, mailbox.size());
+        assertTrue("nothing was spilled", Files.size(dataFile()) > 0);
+        List<OfflineMailbox.Entry> entries = peekAll(mailbox);
+        assertEquals(100, entries.size());
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, entries.get(i - 1).getSeq());
+            assertArrayEquals(frame(i, 10), entries.get(i - 1).getFrame());
+        }
+
+        //the head is sent first, copied from the heap.
+        OfflineMailbox.Chunk chunk = mailbox.nextChunk(Long.MAX_VALUE);
+        assertNull(chunk.getRegion());
+        assertEquals(HEAD_ENTRIES, chunk.getLastSeq());
+        mailbox.removeUpTo(chunk.getLastSeq());
+
+        chunk = mailbox.nextChunk(Long.MAX_VALUE);
+        assertNotNull("the spilled messages were not sent from the file", chunk.getRegion());
+        assertEquals(100, chunk.getLastSeq());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = HEAD_ENTRIES + 1; i <= 100; i++) {
+            expected.write(frame(i, 10));
+        }
+        assertArrayEquals(expected.toByteArray(), read(chunk.getRegion()));
+
+        mailbox.removeUpTo(chunk.getLastSeq());
+        assertEquals(0, mailbox.size());
+        assertNull(mailbox.nextChunk(Long.MAX_VALUE));
+        assertFalse("the spill files of an empty mailbox were kept", Files.exists(dataFile()));
+    }
+
+    @Test
+    public void aFullMailboxDropsItsOldestMessages() throws IOException {
+        OfflineMailbox mailbox = mailbox(10, 0, 1 << 20);
+        for (int i = 1; i <= 25; i++) {
+            mailbox.add(post(i, 10));
+        }
+        assertEquals(10, mailbox.size());
+        List<OfflineMailbox.Entry> entries = peekAll(mailbox);
+        assertEquals(16, entries.get(0).getSeq());
+        assertEquals(25, entries.get(9).getSeq());
+        assertEquals(25, mailbox.getLastSeq());
+    }
+
+    @Test
+    public void theFilesAreCompactedOnceMostOfThemWasSent() throws IOException {
+        //nothing fits in the head, so every message is spilled.
+        OfflineMailbox mailbox = mailbox(1000, 0, 0);
+        for (int i = 1; i <= 300; i++) {
+            mailbox.add(post(i, 10000));
+        }
+        long before = Files.size(dataFile());
+        mailbox.removeUpTo(200);
+        assertTrue("the files were not compacted", Files.size(dataFile()) < before / 2);
+
+        List<OfflineMailbox.Entry> entries = peekAll(mailbox);
+        assertEquals(100, entries.size());
+        for (int i = 201; i <= 300; i++) {
+            assertEquals(i, entries.get(i - 201).getSeq());
+            assertArrayEquals(frame(i, 10000), entries.get(i - 201).getFrame());
+        }
+        //appending goes on at the new end of the files.
+        mailbox.add(post(301, 10000));
+        OfflineMailbox.Chunk chunk = mailbox.nextChunk(Long.MAX_VALUE);
+        assertEquals(301, chunk.getLastSeq());
+        assertEquals(101L * frame(301, 10000).length, chunk.size());
+        chunk.getRegion().close();
+    }
+
+    @Test
+    public void expiredMessagesAreDroppedWhetherOnTheHeapOrSpilled() throws IOException {
+        long now = System.currentTimeMillis();
+        for (long headBudget : new long[]{1 << 20, 0}) {
+            OfflineMailbox mailbox = mailbox(1000, 60000, headBudget);
+            mailbox.restore(1, now - 120000, frame(1, 10));
+            mailbox.restore(2, now - 90000, frame(2, 10));
+            mailbox.restore(3, now, frame(3, 10));
+            assertEquals(1, mailbox.size());
+            assertEquals(3, peekAll(mailbox).get(0).getSeq());
+            //a message that was restored before is not added again.
+            mailbox.restore(3, now, frame(3, 10));
+            assertEquals(1, mailbox.size());
+        }
+    }
+}
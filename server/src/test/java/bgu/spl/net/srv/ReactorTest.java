@@ -0,0 +1,154 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.BidiMessagingProtocol;
+import bgu.spl.net.api.bidi.Connections;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ReactorTest {
+
+    private Reactor<String> reactor;
+    private Thread serving;
+    private int port;
+    private final List<Socket> clients = new ArrayList<>();
+
+    @After
+    public void stop() throws Exception {
+        for (Socket client : clients) {
+            client.close();
+        }
+        if (reactor != null) {
+            reactor.close();
+            serving.join(10000);
+        }
+    }
+
+    /**
+     * Starts a reactor on a free port of the loopback interface.
+     */
+    private void start(int selectors) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        reactor = new Reactor<>(2, selectors, port, EchoProtocol::new, LineEncoderDecoder::new);
+        serving = new Thread(reactor::serve);
+        serving.start();
+    }
+
+    private Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), port);
+                clients.add(client);
+                return client;
+            } catch (IOException ex) {
+                if (attempt == 100) {
+                    throw ex;
+                }
+                //not listening yet.
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static BufferedReader reader(Socket client) throws IOException {
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 30000)
+    public void clientsOfEverySelectorAreServedInOrder() throws Exception {
+        start(3);
+        List<Socket> connected = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            connected.add(connect());
+        }
+        //every client sends all of its lines before it reads, so the selectors serve them all at once.
+        for (int i = 0; i < connected.size(); i++) {
+            StringBuilder lines = new StringBuilder();
+            for (int line = 0; line < 200; line++) {
+                lines.append(i).append(':').append(line).append('\n');
+            }
+            connected.get(i).getOutputStream().write(lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < connected.size(); i++) {
+            BufferedReader in = reader(connected.get(i));
+            for (int line = 0; line < 200; line++) {
+                assertEquals(i + ":" + line, in.readLine());
+            }
+        }
+        assertFalse("no task ran on a selector thread", reactor.getSelectorTaskCount() == 0);
+    }
+
+    @Test(timeout = 30000)
+    public void aClientThatLeavesGetsItsLastAnswerFirst() throws Exception {
+        start(2);
+        Socket client = connect();
+        OutputStream out = client.getOutputStream();
+        out.write("hello\nbye\n".getBytes(StandardCharsets.UTF_8));
+        BufferedReader in = reader(client);
+        assertEquals("hello", in.readLine());
+        assertEquals("bye", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test(timeout = 30000)
+    public void closingTheServerClosesItsClients() throws Exception {
+        start(2);
+        Socket client = connect();
+        client.getOutputStream().write("hello\n".getBytes(StandardCharsets.UTF_8));
+        BufferedReader in = reader(client);
+        assertEquals("hello", in.readLine());
+        reactor.close();
+        serving.join(10000);
+        assertFalse("the server did not stop", serving.isAlive());
+        assertNull(in.readLine());
+        reactor = null;
+    }
+
+    /**
+     * Sends every line back, and leaves after "bye".
+     */
+    private static final class EchoProtocol implements BidiMessagingProtocol<String> {
+        private int connectionId;
+        private Connections<String> connections;
+        private boolean terminate;
+
+        @Override
+        public void start(int connectionId, Connections<String> connections) {
+            this.connectionId = connectionId;
+            this.connections = connections;
+        }
+
+        @Override
+        public void process(String message) {
+            //before the answer, the handler closes the connection once the answer is written.
+            terminate = message.equals("bye");
+            connections.send(connectionId, message);
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return terminate;
+        }
+
+        @Override
+        public void connectionClosed() {
+            connections.disconnect(connectionId);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package bgu.spl.net.srv;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubReactorTest {
+
+    private ActorThreadPool pool;
+    private SubReactor<String> subReactor;
+
+    @Before
+    public void start() throws IOException {
+        pool = new ActorThreadPool(1);
+        subReactor = new SubReactor<>(0, pool, new BufferPool(), 0, 0);
+        subReactor.start();
+    }
+
+    @After
+    public void close() throws IOException {
+        subReactor.close();
+        pool.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void tasksAddedWhileAWakeupIsPendingRideOnIt() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        subReactor.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        //the selector thread is busy with the first task, and its wakeup was already consumed.
+        running.await();
+
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            subReactor.execute(() -> {
+                ran.add(task + " on " + Thread.currentThread().getName());
+                done.countDown();
+            });
+        }
+        release.countDown();
+        done.await();
+
+        assertEquals(2, subReactor.getWakeupCount());
+        assertEquals(99, subReactor.getSuppressedWakeupCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + " on sub-reactor-0", ran.get(i));
+        }
+    }
+}
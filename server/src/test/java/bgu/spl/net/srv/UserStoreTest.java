@@ -0,0 +1,206 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.bidi.Messages.Notification;
+import bgu.spl.net.api.bidi.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private ConcurrentHashMap<String, User> users;
+    private OfflineMailboxes mailboxes;
+    private UserStore store;
+    private int nextUserNumber;
+
+    @Before
+    public void open() throws IOException {
+        directory = folder.getRoot().toPath();
+        reopen();
+    }
+
+    @After
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Stops the store and starts a new one over the same directory, as a restart of the server does.
+     */
+    private void reopen() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        users = new ConcurrentHashMap<>();
+        mailboxes = new OfflineMailboxes(directory.resolve("mailboxes"), OfflineMailboxes.DEFAULT_MAX_MESSAGES, 0,
+                OfflineMailboxes.DEFAULT_HEAD_BUDGET_BYTES);
+        store = new UserStore(directory.resolve("users"), users, mailboxes);
+        nextUserNumber = store.recover();
+    }
+
+    private User register(String name) throws IOException {
+        int id = nextUserNumber++;
+        User user = new User(name, name + "-password", id, (short) 30, mailboxes.create(id));
+        store.register(user);
+        return user;
+    }
+
+    private User get(String name) {
+        User user = users.get(name);
+        assertTrue(name + " was not restored", user != null);
+        return user;
+    }
+
+    @Test
+    public void snapshotAndLogTailRestoreTheSameUsers() throws IOException {
+        User alice = register("alice");
+        User bob = register("bob");
+        User carol = register("carol");
+        store.follow(alice, bob, true);
+        store.follow(carol, bob, true);
+        store.follow(bob, carol, true);
+        store.block(carol, alice);
+        store.post(bob);
+        store.post(bob);
+        store.enqueue(alice, new Notification((byte) 1, "bob", "before the snapshot"));
+        store.snapshot();
+
+        //the tail of the log, after the snapshot.
+        User dave = register("dave");
+        store.follow(dave, bob, true);
+        store.follow(carol, bob, false);
+        store.post(bob);
+        store.post(dave);
+        store.enqueue(alice, new Notification((byte) 0, "dave", "after the snapshot"));
+        store.drain(alice, 1);
+
+        reopen();
+        assertEquals(4, users.size());
+        assertEquals(4, nextUserNumber);
+        User restoredBob = get("bob");
+        assertEquals(3, restoredBob.getPostsAmm());
+        assertEquals(1, get("dave").getPostsAmm());
+        assertEquals(2, restoredBob.getFollowersAmm());
+        assertTrue(restoredBob.getFollowers().contains(get("alice")));
+        assertTrue(restoredBob.getFollowers().contains(get("dave")));
+        assertFalse(restoredBob.getFollowers().contains(get("carol")));
+        assertTrue(get("carol").getFollowers().contains(restoredBob));
+        assertTrue(get("alice").isBlockedBy(get("carol")));
+        assertEquals("bob-password", restoredBob.getPassword());
+
+        List<OfflineMailbox.Entry> waiting = new ArrayList<>();
+        assertEquals(2, get("alice").getWaitingMessages().copyTo(waiting));
+        assertEquals(1, waiting.size());
+        assertEquals(2, waiting.get(0).getSeq());
+    }
+
+    @Test
+    public void postsAreCountedOnceWhenTheLogRepeatsTheSnapshot() throws IOException {
+        User alice = register("alice");
+        for (int i = 0; i < 5; i++) {
+            store.post(alice);
+        }
+        store.snapshot();
+        store.post(alice);
+        reopen();
+        assertEquals(6, get("alice").getPostsAmm());
+        //a second snapshot over the replayed log, and a restart from it alone.
+        store.snapshot();
+        reopen();
+        assertEquals(6, get("alice").getPostsAmm());
+    }
+
+    @Test
+    public void aTornRecordEndsTheLog() throws IOException {
+        User alice = register("alice");
+        User bob = register("bob");
+        store.follow(alice, bob, true);
+        register("carol");
+        store.close();
+        store = null;
+
+        //cut the last record, the registration of carol, in the middle.
+        Path last = lastLogFile();
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        reopen();
+        assertNull(users.get("carol"));
+        assertEquals(2, nextUserNumber);
+        assertTrue(get("bob").getFollowers().contains(get("alice")));
+
+        //the log goes on after the torn record, and a restart reads past it.
+        register("dave");
+        store.follow(get("dave"), get("alice"), true);
+        reopen();
+        assertTrue(get("alice").getFollowers().contains(get("dave")));
+        assertNull(users.get("carol"));
+    }
+
+    @Test
+    public void changesAreRefusedOnceTheLogIsClosed() throws IOException {
+        register("alice");
+        store.close();
+        try {
+            register("bob");
+            fail("registered a user that is not on the disk");
+        } catch (IOException expected) {
+            //refused
+        }
+        assertNull(users.get("bob"));
+        store = null;
+    }
+
+    @Test
+    public void aTakenNameIsRefused() throws IOException {
+        User alice = register("alice");
+        try {
+            register("alice");
+            fail("registered a name twice");
+        } catch (IllegalArgumentException expected) {
+            //refused
+        }
+        assertSame(alice, users.get("alice"));
+        reopen();
+        assertEquals(1, users.size());
+        assertEquals(1, nextUserNumber);
+    }
+
+    private Path lastLogFile() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve("users"), "wal-*.log")) {
+            for (Path file : stream) {
+                if (Files.size(file) > 0) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        return files.get(files.size() - 1);
+    }
+}
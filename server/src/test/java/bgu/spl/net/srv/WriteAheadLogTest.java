@@ -0,0 +1,131 @@
+package bgu.spl.net.srv;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WriteAheadLogTest {
+
+    /**
+     * The length and the CRC32 of the body, before the body.
+     */
+    private static final int HEADER_BYTES = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WriteAheadLog log;
+
+    @After
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private Path directory() {
+        return folder.getRoot().toPath();
+    }
+
+    private Path firstFile() {
+        return directory().resolve(String.format("wal-%020d.log", 0));
+    }
+
+    /**
+     * Replays the log from the given position and opens it for appending.
+     *
+     * @return the bodies of the replayed records.
+     */
+    private List<String> reopen(long fromPosition) throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        List<String> records = new ArrayList<>();
+        log = new WriteAheadLog(directory());
+        log.replay(fromPosition, body -> {
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            records.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+        log.open();
+        return records;
+    }
+
+    private long append(String body) throws IOException {
+        long position = log.append(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+        log.awaitDurable(position);
+        return position;
+    }
+
+    private static int recordBytes(String body) {
+        return HEADER_BYTES + body.length();
+    }
+
+    @Test
+    public void recordsAreReplayedInOrderAndTheLogGoesOnAfterThem() throws IOException {
+        reopen(0);
+        append("first");
+        long end = append("second");
+        assertEquals(Arrays.asList("first", "second"), reopen(0));
+        assertEquals(end + recordBytes("third"), append("third"));
+        assertEquals(Arrays.asList("first", "second", "third"), reopen(0));
+    }
+
+    @Test
+    public void aRecordCutByACrashEndsTheLogAndIsOverwritten() throws IOException {
+        reopen(0);
+        append("first");
+        append("second");
+        append("third");
+        log.close();
+        log = null;
+
+        //a crash in the middle of writing the third record.
+        try (FileChannel channel = FileChannel.open(firstFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(recordBytes("first") + recordBytes("second") + HEADER_BYTES + 2);
+        }
+        assertEquals(Arrays.asList("first", "second"), reopen(0));
+        append("fourth");
+        assertEquals(Arrays.asList("first", "second", "fourth"), reopen(0));
+    }
+
+    @Test
+    public void aRecordThatFailsItsCheckEndsTheLog() throws IOException {
+        reopen(0);
+        append("first");
+        append("second");
+        append("third");
+        log.close();
+        log = null;
+
+        //a byte of the body of the second record that did not reach the disk.
+        try (FileChannel channel = FileChannel.open(firstFile(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'S'}), recordBytes("first") + HEADER_BYTES);
+        }
+        assertEquals(Arrays.asList("first"), reopen(0));
+    }
+
+    @Test
+    public void aReplayFromARolledPositionSkipsAndDeletesTheFilesBeforeIt() throws IOException {
+        reopen(0);
+        append("before");
+        long rolled = log.roll();
+        append("after");
+        assertEquals(Arrays.asList("after"), reopen(rolled));
+        assertFalse(firstFile().toFile().exists());
+    }
+}